@@ -0,0 +1,159 @@
+package com.jensjansson.ce;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.mockito.Mockito;
+
+import com.vaadin.collaborationengine.Backend;
+import com.vaadin.collaborationengine.CollaborationEngine;
+import com.vaadin.collaborationengine.CollaborationEngineConfiguration;
+import com.vaadin.collaborationengine.TopicConnection;
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.di.Lookup;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.server.ServiceDestroyListener;
+import com.vaadin.flow.server.VaadinContext;
+import com.vaadin.flow.server.VaadinService;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * A {@link CollaborationEngine} running in the benchmark process, without a
+ * servlet container. The engine only needs the context attributes of the
+ * {@link VaadinService}, so the service is a mock backed by a map. Another
+ * {@link Backend} can be given to connect several engines, which needs the
+ * {@code vaadin.experimental.collaborationEngineBackend} system property.
+ *
+ * <p>Topic connections are opened with the system connection context, the
+ * same way the bots open them.</p>
+ */
+public class InProcessCollaborationEngine implements AutoCloseable {
+
+    private static final long activationTimeoutSeconds = 10;
+
+    private final ExecutorService executor;
+    private final CollaborationEngine ce;
+    private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    public InProcessCollaborationEngine() {
+        this(null);
+    }
+
+    /**
+     * @param backend the backend of the engine, or {@code null} for the
+     * default one that keeps the topics in this process
+     */
+    public InProcessCollaborationEngine(Backend backend) {
+        VaadinService service = Mockito.mock(VaadinService.class);
+        VaadinContext context = new MapContext();
+        // Without resources, the feature flags needed by other backends are
+        // read from the system properties.
+        context.setAttribute(Lookup.class, Mockito.mock(Lookup.class));
+        Mockito.when(service.getContext()).thenReturn(context);
+        Mockito.when(service.addServiceDestroyListener(
+                Mockito.any(ServiceDestroyListener.class)))
+                .thenReturn(() -> {
+                });
+        executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), runnable -> {
+                    Thread thread = new Thread(runnable);
+                    thread.setDaemon(true);
+                    thread.setName("Benchmark-CE");
+                    return thread;
+                });
+        CollaborationEngineConfiguration configuration = new CollaborationEngineConfiguration();
+        configuration.setExecutorService(executor);
+        if (backend != null) {
+            configuration.setBackend(backend);
+        }
+        ce = CollaborationEngine.configure(service, configuration);
+    }
+
+    public CollaborationEngine get() {
+        return ce;
+    }
+
+    public SerializableSupplier<CollaborationEngine> supplier() {
+        CollaborationEngine engine = ce;
+        return () -> engine;
+    }
+
+    /**
+     * Opens a topic connection and waits until it has been activated.
+     *
+     * @param topicId the topic
+     * @param user the user of the connection
+     * @return the active connection, stays open until {@link #close()}
+     */
+    public TopicConnection openTopic(String topicId, UserInfo user) {
+        CompletableFuture<TopicConnection> activated = new CompletableFuture<>();
+        registrations.add(ce.openTopicConnection(ce.getSystemContext(),
+                topicId, user, topic -> {
+                    activated.complete(topic);
+                    return () -> {
+                    };
+                }));
+        try {
+            return activated.get(activationTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException(
+                    "Topic " + topicId + " was not activated", e);
+        }
+    }
+
+    /**
+     * Closes the topic connections and stops the executor of the engine.
+     */
+    @Override
+    public void close() {
+        registrations.forEach(Registration::remove);
+        registrations.clear();
+        executor.shutdownNow();
+    }
+
+    private static class MapContext implements VaadinContext {
+        private final Map<Class<?>, Object> attributes = new ConcurrentHashMap<>();
+
+        @Override
+        public <T> T getAttribute(Class<T> type, Supplier<T> defaultValueSupplier) {
+            if (defaultValueSupplier == null) {
+                return type.cast(attributes.get(type));
+            }
+            return type.cast(attributes.computeIfAbsent(type,
+                    key -> defaultValueSupplier.get()));
+        }
+
+        @Override
+        public <T> void setAttribute(Class<T> clazz, T value) {
+            if (value == null) {
+                attributes.remove(clazz);
+            } else {
+                attributes.put(clazz, value);
+            }
+        }
+
+        @Override
+        public void removeAttribute(Class<?> clazz) {
+            attributes.remove(clazz);
+        }
+
+        @Override
+        public Enumeration<String> getContextParameterNames() {
+            return Collections.emptyEnumeration();
+        }
+
+        @Override
+        public String getContextParameter(String name) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.jensjansson.ce.bot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jensjansson.ce.InProcessCollaborationEngine;
+
+import com.vaadin.collaborationengine.TopicConnection;
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Several threads adding and removing bots in the avatar list of the same
+ * topic. The failed replaces, retries and dropped batches of each iteration
+ * are reported as secondary results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class BotAvatarUtilBenchmark {
+
+    private static final String TOPIC_ID = "person/1";
+
+    private InProcessCollaborationEngine ce;
+    private Registration avatars;
+
+    @State(Scope.Thread)
+    public static class Bot {
+        UserInfo user;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            user = BotUserGenerator.generateBotUser();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        private long casFailuresAtStart;
+        private long retriesAtStart;
+        private long droppedBatchesAtStart;
+
+        public long casFailures;
+        public long retries;
+        public long droppedBatches;
+
+        @Setup(Level.Iteration)
+        public void start() {
+            casFailuresAtStart = BotAvatarUtil.getCasFailureCount();
+            retriesAtStart = BotAvatarUtil.getRetryCount();
+            droppedBatchesAtStart = BotAvatarUtil.getDroppedBatchCount();
+        }
+
+        @TearDown(Level.Iteration)
+        public void stop() {
+            casFailures = BotAvatarUtil.getCasFailureCount()
+                    - casFailuresAtStart;
+            retries = BotAvatarUtil.getRetryCount() - retriesAtStart;
+            droppedBatches = BotAvatarUtil.getDroppedBatchCount()
+                    - droppedBatchesAtStart;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ce = new InProcessCollaborationEngine();
+        TopicConnection topic = ce.openTopic(TOPIC_ID,
+                BotUserGenerator.generateBotUser());
+        avatars = BotAvatarUtil.connect(TOPIC_ID, topic);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        avatars.remove();
+        ce.close();
+    }
+
+    @Benchmark
+    public void addAndRemove(Bot bot, Counters counters) {
+        BotAvatarUtil.addAvatar(TOPIC_ID, bot.user);
+        BotAvatarUtil.removeAvatar(TOPIC_ID, bot.user);
+    }
+}
@@ -0,0 +1,80 @@
+package com.jensjansson.ce.bot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jensjansson.ce.InProcessCollaborationEngine;
+import com.jensjansson.ce.collaboration.FieldEditorIndex;
+
+import com.vaadin.collaborationengine.TopicConnection;
+import com.vaadin.collaborationengine.UserInfo;
+
+/**
+ * One full field edit of an edit bot: focusing the field, setting the value
+ * and blurring the field, the steps that
+ * {@link BotFieldEditor#editRandomField} returns.
+ *
+ * <p>The engine applies the changes asynchronously, so a step may fail when
+ * it races with a change still being applied. The bots log and skip such
+ * steps, here they are counted as a secondary result.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BotFieldEditorBenchmark {
+
+    private InProcessCollaborationEngine ce;
+    private TopicConnection topic;
+    private UserInfo user;
+    private BotValuePools valuePools;
+    private FieldEditorIndex editors;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ce = new InProcessCollaborationEngine();
+        user = BotUserGenerator.generateBotUser();
+        topic = ce.openTopic("person/1", user);
+        valuePools = new BotValuePools(1000, 123);
+        editors = FieldEditorIndex.subscribe(topic);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        editors.remove();
+        ce.close();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long failedSteps;
+    }
+
+    @Benchmark
+    public void editRandomField(Counters counters) {
+        for (Runnable step : BotFieldEditor.editRandomField(topic, user,
+                valuePools, editors)) {
+            try {
+                step.run();
+            } catch (RuntimeException e) {
+                counters.failedSteps++;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.jensjansson.ce.bot;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jensjansson.ce.InProcessCollaborationEngine;
+import com.jensjansson.ce.collaboration.TopicEventBus;
+import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.data.generator.DataGenerator;
+import com.jensjansson.ce.data.service.PersonService;
+import com.jensjansson.ce.data.service.PersonWriteBehindQueue;
+
+import com.vaadin.collaborationengine.CollaborationBinderUtil;
+import com.vaadin.collaborationengine.TopicConnection;
+import com.vaadin.collaborationengine.UserInfo;
+
+/**
+ * A bot saving the edited entity: reading the field values from the topic,
+ * queueing the entity for writing and sending the save notification. The
+ * database is replaced with a mock, so only the code run by the bot is
+ * measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BotSaverBenchmark {
+
+    private InProcessCollaborationEngine ce;
+    private TopicConnection topic;
+    private UserInfo user;
+    private Person person;
+    private PersonWriteBehindQueue writeQueue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ce = new InProcessCollaborationEngine();
+        TopicEventBus.createInstance(ce.supplier(), true);
+        user = BotUserGenerator.generateBotUser();
+        topic = ce.openTopic("person/1", user);
+        person = DataGenerator.generateData(1, 123L).get(0);
+        person.setId(1);
+        CollaborationBinderUtil.setFieldValue(topic, "firstName",
+                person.getFirstName());
+        CollaborationBinderUtil.setFieldValue(topic, "lastName",
+                person.getLastName());
+        CollaborationBinderUtil.setFieldValue(topic, "email",
+                person.getEmail());
+        CollaborationBinderUtil.setFieldValue(topic, "phoneNumber",
+                person.getPhoneNumber());
+        CollaborationBinderUtil.setFieldValue(topic, "happiness", "Raw");
+        writeQueue = new PersonWriteBehindQueue(
+                Mockito.mock(PersonService.class), new SimpleMeterRegistry(),
+                50, 1000, 500);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writeQueue.shutdown();
+        ce.close();
+    }
+
+    @Benchmark
+    public void save() {
+        BotSaver.save(ce.get(), topic, person, writeQueue, user);
+    }
+}
@@ -0,0 +1,78 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jensjansson.ce.InProcessCollaborationEngine;
+
+import com.vaadin.collaborationengine.CollaborationMap;
+import com.vaadin.collaborationengine.UserInfo;
+
+/**
+ * A value put in a {@link CollaborationMap} and delivered to the given
+ * number of subscribers, each with its own topic connection. An operation
+ * ends when every subscriber has received the change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollaborationMapFanOutBenchmark {
+
+    private static final String TOPIC_ID = "fanOut";
+    private static final String MAP_NAME = "values";
+    private static final String KEY = "value";
+
+    @Param({ "1", "10", "100" })
+    private int subscribers;
+
+    private InProcessCollaborationEngine ce;
+    private CollaborationMap map;
+    private final AtomicInteger received = new AtomicInteger();
+    private int value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ce = new InProcessCollaborationEngine();
+        for (int i = 0; i < subscribers; i++) {
+            ce.openTopic(TOPIC_ID, new UserInfo("subscriber-" + i))
+                    .getNamedMap(MAP_NAME).subscribe(event -> {
+                        if (KEY.equals(event.getKey())) {
+                            received.incrementAndGet();
+                        }
+                    });
+        }
+        map = ce.openTopic(TOPIC_ID, new UserInfo("writer"))
+                .getNamedMap(MAP_NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ce.close();
+    }
+
+    @Benchmark
+    public void putAndDeliver() {
+        received.set(0);
+        map.put(KEY, ++value);
+        while (received.get() < subscribers) {
+            Thread.onSpinWait();
+        }
+    }
+}
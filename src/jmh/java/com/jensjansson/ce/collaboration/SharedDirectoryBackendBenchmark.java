@@ -0,0 +1,100 @@
+package com.jensjansson.ce.collaboration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jensjansson.ce.InProcessCollaborationEngine;
+
+import com.vaadin.collaborationengine.CollaborationMap;
+import com.vaadin.collaborationengine.UserInfo;
+
+/**
+ * A value put in a {@link CollaborationMap} on one node and delivered to a
+ * subscriber on another node, with the nodes sharing a temporary directory
+ * through the {@link SharedDirectoryBackend}. An operation ends when the
+ * other node has received the change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dvaadin.experimental.collaborationEngineBackend=true")
+public class SharedDirectoryBackendBenchmark {
+
+    private static final String TOPIC_ID = "replicated";
+    private static final String MAP_NAME = "values";
+    private static final String KEY = "value";
+
+    @Param({ "10", "100" })
+    private long pollMillis;
+
+    private Path directory;
+    private SharedDirectoryBackend backendA;
+    private SharedDirectoryBackend backendB;
+    private InProcessCollaborationEngine nodeA;
+    private InProcessCollaborationEngine nodeB;
+    private CollaborationMap map;
+    private final AtomicInteger received = new AtomicInteger();
+    private int value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ce-backend");
+        backendA = new SharedDirectoryBackend(directory, pollMillis);
+        backendB = new SharedDirectoryBackend(directory, pollMillis);
+        nodeA = new InProcessCollaborationEngine(backendA);
+        nodeB = new InProcessCollaborationEngine(backendB);
+        nodeB.openTopic(TOPIC_ID, new UserInfo("subscriber"))
+                .getNamedMap(MAP_NAME).subscribe(event -> {
+                    if (KEY.equals(event.getKey())
+                            && event.getValue(Integer.class) != null) {
+                        received.set(event.getValue(Integer.class));
+                    }
+                });
+        map = nodeA.openTopic(TOPIC_ID, new UserInfo("writer"))
+                .getNamedMap(MAP_NAME);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        nodeA.close();
+        nodeB.close();
+        backendA.close();
+        backendB.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public int replicate() {
+        int expected = ++value;
+        map.put(KEY, expected);
+        while (received.get() != expected) {
+            Thread.onSpinWait();
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,90 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of the events stored by the
+ * {@link SharedDirectoryBackend}, with events shaped like the ones of the
+ * editor: a field value from the binder, the save notification and a user
+ * joining the avatar group. The size of the encoded events is printed when
+ * the trial starts. An operation handles all of the events.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicPayloadCodecBenchmark {
+
+    private static final List<String> EVENTS = List.of(
+            "{\"id\":\"5e1c3b0e-8a4f-4f57-9d0b-2a6f1f0c7d11\",\"type\":\"m-put\","
+                    + "\"name\":\"values\",\"key\":\"firstName\","
+                    + "\"value\":\"Eleanor\",\"expected-id\":null,"
+                    + "\"expected-value\":null,\"scope-owner\":null}",
+            "{\"id\":\"9a7d0c4e-6b1f-4e3a-8c2d-7f5e4b3a2c1d\",\"type\":\"m-put\","
+                    + "\"name\":\"save\",\"key\":\"save\","
+                    + "\"value\":{\"userId\":\"b0f8a3c2-1d4e-4f6a-9b7c-8e5d2a1f0c3b\","
+                    + "\"userName\":\"Eleanor Rigby\","
+                    + "\"messageId\":\"0c2e4a6b-8d1f-4c3e-a5b7-9d2f4e6a8c0b\"},"
+                    + "\"expected-id\":null,\"expected-value\":null,"
+                    + "\"scope-owner\":null}",
+            "{\"id\":\"3f6b9d2e-4a1c-4e8f-b7d3-1c5e9a2f6b4d\",\"type\":\"l-insert\","
+                    + "\"name\":\"users\",\"item\":{\"user\":{"
+                    + "\"id\":\"b0f8a3c2-1d4e-4f6a-9b7c-8e5d2a1f0c3b\","
+                    + "\"name\":\"Eleanor Rigby\",\"abbreviation\":\"ER\","
+                    + "\"image\":\"https://images.unsplash.com/photo-1494790108377"
+                    + "?w=128&h=128&fit=crop\",\"colorIndex\":3},\"count\":1},"
+                    + "\"position\":\"after\",\"reference-key\":null,"
+                    + "\"scope-owner\":\"c4d2e6f8-0a1b-4c3d-9e5f-7a8b6c4d2e0f\"}");
+
+    @Param({ "JSON", "SMILE" })
+    private String codecName;
+
+    private TopicPayloadCodec codec;
+    private byte[][] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codec = TopicPayloadCodec.forName(codecName);
+        encoded = new byte[EVENTS.size()][];
+        int json = 0;
+        int total = 0;
+        for (int i = 0; i < EVENTS.size(); i++) {
+            encoded[i] = codec.encode(EVENTS.get(i));
+            json += TopicPayloadCodec.JSON.encode(EVENTS.get(i)).length;
+            total += encoded[i].length;
+        }
+        System.out.printf("%n%s: %d bytes per event, JSON %d%n", codecName,
+                total / EVENTS.size(), json / EVENTS.size());
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        for (String event : EVENTS) {
+            blackhole.consume(codec.encode(event));
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        for (byte[] event : encoded) {
+            blackhole.consume(codec.decode(event, 0, event.length));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.jensjansson.ce.views.persons;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jensjansson.ce.collaboration.PresenceAggregator.PresentUser;
+
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.component.avatar.AvatarGroup;
+import com.vaadin.flow.component.avatar.AvatarGroup.AvatarGroupItem;
+
+import elemental.json.JsonArray;
+
+/**
+ * The presence column of one page of the employee grid. The component
+ * column creates an {@link AvatarGroup} per row, which the session keeps
+ * until the row is scrolled out. The renderer column creates the JSON
+ * property of the row, which is sent to the client and not kept. Run with
+ * {@code -Djmh.args="PresenceColumn -prof gc"} to compare the allocations
+ * too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PresenceColumnBenchmark {
+
+    private static final int rows = 50;
+
+    @Param({ "0", "3" })
+    private int usersPerRow;
+
+    private final UserInfo localUser = new UserInfo("local", "Local User");
+    private final List<List<PresentUser>> page = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int row = 0; row < rows; row++) {
+            List<PresentUser> users = new ArrayList<>();
+            for (int i = 0; i < usersPerRow; i++) {
+                UserInfo user = new UserInfo("user-" + row + "-" + i,
+                        "User " + i, "images/avatars/" + i + ".png");
+                users.add(new PresentUser(user, i));
+            }
+            page.add(users);
+        }
+    }
+
+    @Benchmark
+    public List<AvatarGroup> componentColumn() {
+        List<AvatarGroup> components = new ArrayList<>(rows);
+        for (List<PresentUser> users : page) {
+            AvatarGroup group = new AvatarGroup();
+            group.setItems(users.stream()
+                    .map(present -> new AvatarGroupItem(
+                            String.format("%s is editing this row",
+                                    present.getUser().getName()),
+                            present.getUser().getImage()))
+                    .collect(Collectors.toList()));
+            components.add(group);
+        }
+        return components;
+    }
+
+    @Benchmark
+    public List<JsonArray> rendererColumn() {
+        List<JsonArray> properties = new ArrayList<>(rows);
+        for (List<PresentUser> users : page) {
+            properties.add(
+                    EmployeesView.createPresenceItems(users, localUser));
+        }
+        return properties;
+    }
+}
@@ -1,14 +1,34 @@
 package com.jensjansson.ce;
 
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
 import com.jensjansson.ce.bot.BotManager;
+import com.jensjansson.ce.bot.BotProperties;
+import com.jensjansson.ce.bot.LoadGenerator;
+import com.jensjansson.ce.bot.LoadGeneratorProperties;
+import com.jensjansson.ce.collaboration.PersonRefreshChannel;
+import com.jensjansson.ce.collaboration.PresenceAggregator;
+import com.jensjansson.ce.collaboration.SharedDirectoryBackend;
+import com.jensjansson.ce.collaboration.TopicEventBus;
+import com.jensjansson.ce.collaboration.TopicPayloadCodec;
+import com.jensjansson.ce.collaboration.TopicPrefetcher;
+import com.jensjansson.ce.data.generator.DataReadyEvent;
+import com.jensjansson.ce.data.service.CommentMessagePersister;
 import com.jensjansson.ce.data.service.PersonService;
+import com.jensjansson.ce.data.service.PersonWriteBehindQueue;
 import com.vaadin.flow.function.SerializableSupplier;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
+import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 import com.vaadin.collaborationengine.CollaborationEngine;
@@ -25,6 +45,8 @@ import com.vaadin.flow.theme.Theme;
  * The entry point of the Spring Boot application.
  */
 @SpringBootApplication
+@EnableConfigurationProperties({ BotProperties.class,
+        LoadGeneratorProperties.class })
 @PWA(name = "CE Demo", shortName = "CE Demo")
 @Push
 @Theme("ce-demo")
@@ -40,16 +62,99 @@ public class Application extends SpringBootServletInitializer
 
     @Autowired
     PersonService personService;
+    @Autowired
+    PersonWriteBehindQueue personWriteQueue;
+    @Autowired
+    BotProperties botProperties;
+    @Autowired
+    LoadGeneratorProperties loadGeneratorProperties;
+    @Autowired
+    MeterRegistry meterRegistry;
+    @Autowired
+    CommentMessagePersister commentPersister;
+    /**
+     * Window in which saves are collected before the grids are told to
+     * refresh.
+     */
+    @Value("${persons.refresh-window-millis:250}")
+    long refreshWindowMillis;
+    /**
+     * Directory where the topics are kept over restarts and shared with the
+     * other nodes, or empty to keep the topics in the memory of this node
+     * only.
+     */
+    @Value("${collaboration.backend.directory:}")
+    String backendDirectory;
+    @Value("${collaboration.backend.poll-millis:100}")
+    long backendPollMillis;
+    /**
+     * Codec of the events stored in the directory, {@code json} or
+     * {@code smile}, see {@link TopicPayloadCodec}.
+     */
+    @Value("${collaboration.backend.codec:json}")
+    String backendCodec;
+    /**
+     * How long the topic of a person is kept warm after the pointer was
+     * last over its edit button.
+     */
+    @Value("${editor.prefetch.timeout-millis:5000}")
+    long prefetchTimeoutMillis;
     SerializableSupplier<CollaborationEngine> ceSupplier;
+    private SharedDirectoryBackend backend;
+    /**
+     * Completed when the demo data is in the database. The data may be
+     * ready before or after the Collaboration Engine is configured.
+     */
+    private final CompletableFuture<Void> dataReady = new CompletableFuture<>();
+
+    @EventListener(DataReadyEvent.class)
+    public void onDataReady() {
+        dataReady.complete(null);
+    }
 
     @Override
     public void serviceInit(ServiceInitEvent serviceInitEvent) {
 
         CollaborationEngineConfiguration configuration = new CollaborationEngineConfiguration();
+        if (!backendDirectory.isBlank()) {
+            backend = new SharedDirectoryBackend(Path.of(backendDirectory),
+                    backendPollMillis,
+                    TopicPayloadCodec.forName(backendCodec));
+            configuration.setBackend(backend);
+        }
         CollaborationEngine ce = CollaborationEngine.configure(serviceInitEvent.getSource(),
                 configuration);
         ceSupplier = () -> ce;
 
-        BotManager.createInstance(personService, ceSupplier);
+        PersonRefreshChannel.createInstance(ceSupplier, personService,
+                refreshWindowMillis, meterRegistry);
+        PresenceAggregator.createInstance(ceSupplier, meterRegistry);
+        TopicEventBus.createInstance(ceSupplier, backend != null);
+        TopicPrefetcher.createInstance(ceSupplier, personService,
+                commentPersister, prefetchTimeoutMillis, meterRegistry);
+
+        dataReady.thenRun(() -> {
+            BotManager.createInstance(personService, personWriteQueue,
+                    ceSupplier, botProperties, meterRegistry);
+            if (loadGeneratorProperties.isEnabled()) {
+                LoadGenerator.start(personService, personWriteQueue,
+                        ceSupplier, botProperties, loadGeneratorProperties);
+            }
+        }).exceptionally(e -> {
+            LOGGER.error("Failed to start the bots", e);
+            return null;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        BotManager.shutdown();
+        LoadGenerator.shutdown();
+        PersonRefreshChannel.shutdown();
+        PresenceAggregator.shutdown();
+        TopicPrefetcher.shutdown();
+        if (backend != null) {
+            backend.close();
+        }
     }
 }
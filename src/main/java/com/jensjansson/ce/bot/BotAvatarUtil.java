@@ -1,78 +1,278 @@
 package com.jensjansson.ce.bot;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.vaadin.collaborationengine.CollaborationAvatarGroup;
 import com.vaadin.collaborationengine.CollaborationMap;
 import com.vaadin.collaborationengine.TopicConnection;
 import com.vaadin.collaborationengine.UserInfo;
-import com.vaadin.flow.function.SerializableFunction;
 import com.vaadin.flow.server.Command;
+import com.vaadin.flow.shared.Registration;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Adds and removes bots in the user list of a {@link CollaborationAvatarGroup}.
+ *
+ * <p>The changes requested for a topic are queued and applied together with
+ * one {@link CollaborationMap#replace(String, Object, Object)}. When the
+ * replace fails because someone else changed the list, it is retried a
+ * limited number of times with a growing, jittered delay. The number of
+ * failed replaces, retries and dropped changes are counted.</p>
+ *
+ * <p>The state of a topic is kept while a connection to it is active: call
+ * {@link #connect(String, TopicConnection)} in the activation handler of
+ * the connection and return the registration it returns, so the state is
+ * removed when the last connection to the topic is deactivated.</p>
+ */
 class BotAvatarUtil {
 
+    private static final Logger logger = LoggerFactory
+            .getLogger(BotAvatarUtil.class);
+
     private static final String MAP_KEY = "users";
     private static final TypeReference<List<UserInfo>> LIST_USER_INFO_TYPE_REF = new TypeReference<List<UserInfo>>() {
     };
 
-    public static void addAvatar(TopicConnection topic, UserInfo user) {
-        updateAvatars(topic,
-                oldValue -> Stream.concat(oldValue, Stream.of(user)));
-    }
+    /**
+     * Number of times a batch of changes is tried before it is dropped.
+     */
+    private static final int maxAttempts = 5;
 
-    public static void removeAvatar(TopicConnection topic, UserInfo user) {
-        updateAvatars(topic,
-                oldValue -> oldValue.filter(u -> !Objects.equals(u, user)));
-    }
+    /**
+     * Delay before the first retry. Doubled for each following retry.
+     */
+    private static final long retryBaseDelayMillis = 20;
+
+    private static final AtomicLong casFailures = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong droppedBatches = new AtomicLong();
+
+    /**
+     * State of each topic with an active connection, by topic id.
+     */
+    private static final Map<String, TopicAvatars> topics = new ConcurrentHashMap<>();
 
-    private static void updateAvatars(TopicConnection topic,
-        SerializableFunction<Stream<UserInfo>, Stream<UserInfo>> updater) {
+    /**
+     * Makes the avatars of a topic available through an active connection.
+     *
+     * @param topicId the topic
+     * @param topic a connection to the topic that has just been activated
+     * @return registration to return from the activation handler of the
+     * connection, which removes the state of the topic once all of its
+     * connections have been deactivated
+     */
+    public static Registration connect(String topicId, TopicConnection topic) {
         CollaborationMap map = getMap(topic);
-        List<UserInfo> oldUsers = map.get(MAP_KEY, LIST_USER_INFO_TYPE_REF);
-        Stream<UserInfo> oldUsersStream =
-            oldUsers != null ? oldUsers.stream() : Stream.empty();
-        List<UserInfo> newUsers = updater.apply(oldUsersStream)
-            .collect(Collectors.toList());
-        map.replace(MAP_KEY, oldUsers, newUsers).thenAccept(success -> {
-            if (!success) {
-                updateAvatars(topic, updater);
+        TopicAvatars avatars = topics.compute(topicId, (id, existing) -> {
+            TopicAvatars topicAvatars = existing != null ? existing
+                    : new TopicAvatars();
+            topicAvatars.maps.add(map);
+            return topicAvatars;
+        });
+        Registration subscription = map.subscribe(e -> {
+            if (MAP_KEY.equals(e.getKey())) {
+                avatars.count(e.getValue(LIST_USER_INFO_TYPE_REF));
             }
         });
+        return () -> {
+            subscription.remove();
+            topics.computeIfPresent(topicId, (id, topicAvatars) -> {
+                topicAvatars.maps.remove(map);
+                return topicAvatars.maps.isEmpty() ? null : topicAvatars;
+            });
+        };
+    }
+
+    public static void addAvatar(String topicId, UserInfo user) {
+        update(topicId, new Change(user, true));
+    }
+
+    public static void removeAvatar(String topicId, UserInfo user) {
+        update(topicId, new Change(user, false));
     }
 
     public static void onUsersChanged(TopicConnection topic, Command action) {
         getMap(topic).subscribe(e -> action.execute());
     }
 
-    public static int getBotCount(TopicConnection topic) {
-        return getUserCount(topic,
-                u -> u.getId().startsWith(BotUserGenerator.BOT_ID_PREFIX));
+    public static int getBotCount(String topicId) {
+        TopicAvatars avatars = topics.get(topicId);
+        return avatars != null ? avatars.botCount : 0;
     }
 
-    public static int getRealUserCount(TopicConnection topic) {
-        return getUserCount(topic,
-                u -> !u.getId().startsWith(BotUserGenerator.BOT_ID_PREFIX) && !u.getId().startsWith(
-                    BotManager.BOT_PREFIX));
+    public static int getRealUserCount(String topicId) {
+        TopicAvatars avatars = topics.get(topicId);
+        return avatars != null ? avatars.realUserCount : 0;
     }
 
-    private static int getUserCount(TopicConnection topic,
-            Predicate<UserInfo> filter) {
-        CollaborationMap map = getMap(topic);
-        List<UserInfo> users = map.get(MAP_KEY, LIST_USER_INFO_TYPE_REF);
-        if (users == null) {
-            return 0;
+    /**
+     * @return number of replaces that failed because the list had changed
+     */
+    static long getCasFailureCount() {
+        return casFailures.get();
+    }
+
+    /**
+     * @return number of times a batch of changes has been retried
+     */
+    static long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return number of batches dropped after too many failed attempts
+     */
+    static long getDroppedBatchCount() {
+        return droppedBatches.get();
+    }
+
+    private static void update(String topicId, Change change) {
+        TopicAvatars avatars = topics.get(topicId);
+        if (avatars != null) {
+            avatars.update(change);
+        } else {
+            logger.debug("Ignored an avatar change in {}, which has no "
+                    + "active connection", topicId);
         }
-        return (int) users.stream().filter(filter).count();
     }
 
     private static CollaborationMap getMap(TopicConnection topic) {
         return topic.getNamedMap(CollaborationAvatarGroup.class.getName());
     }
 
+    private static boolean isBot(UserInfo user) {
+        return user.getId().startsWith(BotUserGenerator.BOT_ID_PREFIX);
+    }
+
+    private static boolean isRealUser(UserInfo user) {
+        return !user.getId().startsWith(BotUserGenerator.BOT_ID_PREFIX)
+                && !user.getId().startsWith(BotManager.BOT_PREFIX);
+    }
+
+    /**
+     * An avatar to add or remove.
+     */
+    private record Change(UserInfo user, boolean add) {
+    }
+
+    /**
+     * Pending changes and cached user counts of one topic.
+     */
+    private static class TopicAvatars {
+        /**
+         * The avatar map of each active connection to the topic. The
+         * changes are applied through the first one.
+         */
+        private final List<CollaborationMap> maps = new CopyOnWriteArrayList<>();
+        private final Queue<Change> queue = new ConcurrentLinkedQueue<>();
+        /**
+         * Set while a batch is being applied. Only one batch per topic is in
+         * flight at a time, the others wait in the queue.
+         */
+        private final AtomicBoolean applying = new AtomicBoolean();
+
+        private volatile int botCount;
+        private volatile int realUserCount;
+
+        void update(Change change) {
+            queue.add(change);
+            applyNext();
+        }
+
+        private void applyNext() {
+            if (!queue.isEmpty() && applying.compareAndSet(false, true)) {
+                apply(new ArrayList<>(), 1);
+            }
+        }
+
+        /**
+         * Applies the given changes together with everything queued so far.
+         *
+         * @param batch changes of the previous failed attempt
+         * @param attempt number of this attempt, starting from 1
+         */
+        private void apply(List<Change> batch, int attempt) {
+            Change change;
+            while ((change = queue.poll()) != null) {
+                batch.add(change);
+            }
+            CollaborationMap map = maps.stream().findFirst().orElse(null);
+            if (map == null) {
+                // All the connections were deactivated meanwhile.
+                done();
+                return;
+            }
+            List<UserInfo> oldUsers = map.get(MAP_KEY, LIST_USER_INFO_TYPE_REF);
+            List<UserInfo> newUsers = oldUsers != null
+                    ? new ArrayList<>(oldUsers) : new ArrayList<>();
+            for (Change c : batch) {
+                if (c.add()) {
+                    newUsers.add(c.user());
+                } else {
+                    newUsers.removeIf(u -> Objects.equals(u, c.user()));
+                }
+            }
+            map.replace(MAP_KEY, oldUsers, newUsers).whenComplete(
+                    (success, error) -> {
+                        if (Boolean.TRUE.equals(success)) {
+                            done();
+                            return;
+                        }
+                        casFailures.incrementAndGet();
+                        if (attempt >= maxAttempts) {
+                            droppedBatches.incrementAndGet();
+                            logger.debug("Dropped {} avatar changes after {} attempts",
+                                    batch.size(), attempt);
+                            done();
+                            return;
+                        }
+                        retries.incrementAndGet();
+                        long backoff = retryBaseDelayMillis << (attempt - 1);
+                        long delay = backoff / 2 + ThreadLocalRandom.current()
+                                .nextLong(backoff);
+                        CompletableFuture.runAsync(
+                                () -> apply(batch, attempt + 1),
+                                CompletableFuture.delayedExecutor(delay,
+                                        TimeUnit.MILLISECONDS));
+                    });
+        }
+
+        private void done() {
+            applying.set(false);
+            // Changes may have been queued while the batch was in flight.
+            applyNext();
+        }
+
+        private void count(List<UserInfo> users) {
+            int bots = 0;
+            int realUsers = 0;
+            if (users != null) {
+                for (UserInfo user : users) {
+                    if (isBot(user)) {
+                        bots++;
+                    }
+                    if (isRealUser(user)) {
+                        realUsers++;
+                    }
+                }
+            }
+            botCount = bots;
+            realUserCount = realUsers;
+        }
+    }
 }
@@ -1,43 +1,36 @@
 package com.jensjansson.ce.bot;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Supplier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
 
-import com.vaadin.collaborationengine.CollaborationBinder;
 import com.vaadin.collaborationengine.CollaborationBinderUtil;
 import com.vaadin.collaborationengine.TopicConnection;
 import com.vaadin.collaborationengine.UserInfo;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.jensjansson.ce.data.entity.Person;
-import com.jensjansson.ce.data.generator.DataGenerator;
+import com.jensjansson.ce.collaboration.FieldEditorIndex;
 import com.jensjansson.ce.views.persons.EditorView;
 
 class BotFieldEditor {
 
-    private static Map<String, Supplier<Object>> fieldToValueProvider = new ConcurrentHashMap<>();
+    private static final Map<String, Function<BotValuePools, Object>> fieldToValueProvider = Map
+            .of("firstName", BotValuePools::randomFirstName, "lastName",
+                    BotValuePools::randomLastName, "email",
+                    BotValuePools::randomEmail, "happiness",
+                    BotValuePools::randomHappiness);
 
-    static {
-        fieldToValueProvider.put("firstName",
-                () -> generatePerson().getFirstName());
-        fieldToValueProvider.put("lastName",
-                () -> generatePerson().getLastName());
-        fieldToValueProvider.put("email", () -> generatePerson().getEmail());
-        fieldToValueProvider.put("happiness",
-                () -> getRandomEntry(EditorView.HAPPINESS_VALUES));
-    }
+    private static final List<String> fields = List
+            .copyOf(fieldToValueProvider.keySet());
 
     static List<Runnable> editRandomField(TopicConnection topic,
-        UserInfo user) {
+        UserInfo user, BotValuePools valuePools, FieldEditorIndex editors) {
 
         List<Runnable> result = new ArrayList<>();
-        String propertyName = getRandomEntry(fieldToValueProvider.keySet());
+        String propertyName = getRandomEntry(fields);
 
-        Object value = fieldToValueProvider.get(propertyName).get();
+        Object value = fieldToValueProvider.get(propertyName).apply(valuePools);
 
         if (propertyName.equals("happiness")) {
             result.add(() -> {
@@ -53,7 +46,7 @@ class BotFieldEditor {
 
             result.add(() -> {
                 // Skip changing the value if there's another focused user
-                if (getEditorCount(topic, propertyName) < 2) {
+                if (editors.getEditorCount(propertyName) < 2) {
                     CollaborationBinderUtil
                         .setFieldValue(topic, propertyName, value);
                 }
@@ -64,21 +57,8 @@ class BotFieldEditor {
         return result;
     }
 
-    private static Person generatePerson() {
-        return DataGenerator.generateData(1, (long) (Math.random() * 1000))
-                .get(0);
-    }
-
-    private static <T> T getRandomEntry(Collection<T> collection) {
-        return collection.stream()
-                .skip((int) (collection.size() * Math.random())).findFirst()
-                .get();
-    }
-
-    private static int getEditorCount(TopicConnection topic,
-            String propertyName) {
-        return (int) topic.getNamedList(CollaborationBinder.class.getName()).getItems(ObjectNode.class)
-            .stream().filter(node -> propertyName.equals(node.get("propertyName").asText())).count();
+    private static <T> T getRandomEntry(List<T> list) {
+        return list.get(ThreadLocalRandom.current().nextInt(list.size()));
     }
 
 }
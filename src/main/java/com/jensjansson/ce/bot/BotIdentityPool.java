@@ -0,0 +1,53 @@
+package com.jensjansson.ce.bot;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.vaadin.collaborationengine.UserInfo;
+
+/**
+ * Fixed size pool of bot {@link UserInfo} identities. Topics are mapped to
+ * identities by id, so the number of identities stays the same no matter
+ * how many topics have bots.
+ */
+class BotIdentityPool {
+
+    private final List<UserInfo> identities;
+
+    /**
+     * Creates the specified number of {@link UserInfo} instances, which will
+     * be used for bots.
+     *
+     * @param size number of identities in the pool, at least 1
+     * @param prefix prefix for the user ids
+     * @param maxAvatarNumber number of avatar images available
+     */
+    BotIdentityPool(int size, String prefix, int maxAvatarNumber) {
+        identities = IntStream.range(0, Math.max(1, size)).mapToObj(i -> {
+            UserInfo bot = BotUserGenerator.generateBotUser(prefix);
+            String image = String
+                .format("images/avatars/%d.png", (i % maxAvatarNumber) + 1);
+            bot.setImage(image);
+            return bot;
+        }).collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * Gets the identity assigned to a {@link com.jensjansson.ce.data.entity.Person} id.
+     *
+     * @param id id of the entity
+     * @return the bot identity, not {@code null}
+     */
+    UserInfo get(int id) {
+        return identities.get(Math.floorMod(id, identities.size()));
+    }
+
+    List<UserInfo> getAll() {
+        return identities;
+    }
+
+    int size() {
+        return identities.size();
+    }
+}
@@ -1,26 +1,29 @@
 package com.jensjansson.ce.bot;
 
-import java.time.Instant;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
+import com.jensjansson.ce.collaboration.FieldEditorIndex;
+import com.jensjansson.ce.collaboration.PersonRefreshChannel;
 import com.jensjansson.ce.data.entity.Person;
 import com.jensjansson.ce.data.service.PersonService;
+import com.jensjansson.ce.data.service.PersonWriteBehindQueue;
 import com.vaadin.flow.function.SerializableSupplier;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.vaadin.collaborationengine.CollaborationEngine;
-import com.vaadin.collaborationengine.CollaborationMap;
 import com.vaadin.collaborationengine.PresenceHandler;
 import com.vaadin.collaborationengine.PresenceManager;
 import com.vaadin.collaborationengine.TopicConnection;
@@ -29,13 +32,18 @@ import com.vaadin.flow.shared.Registration;
 
 /**
  * Controls the bots, both for presence and for editing forms.
- * Runs in one specific thread, created in {@link com.jensjansson.ce.Application}
- * when the demo is started.
+ * Runs on a pool of worker threads, created in
+ * {@link com.jensjansson.ce.Application} when the demo is started. Every bot
+ * is its own task with its own next-due time on a {@link BotTimer}, so busy
+ * topics never delay the others and idle bots cost nothing between runs.
  *
  * There are three types of bots.
  *
- * <p>The main bots connect to the topics for the {@link Person} instances so
- * there is always one bot connected to each topic. The connections use a {@link PresenceManager}
+ * <p>The main bots connect to the topics for the {@link Person} instances. A
+ * sample of the topics get a bot at startup, and any other topic gets one when
+ * a real user opens it, see {@link #activateTopic(Integer)}. The pool of bot
+ * identities and all the other sizes are configured with {@link BotProperties}.
+ * The connections use a {@link PresenceManager}
  * with a {@link UserHandler}, which is a {@link PresenceHandler}. While there are
  * no real users connected to the topic, the bots randomly change the value of
  * {@link PresenceManager#markAsPresent(boolean)}. Once at least one user opens
@@ -46,44 +54,90 @@ import com.vaadin.flow.shared.Registration;
  * in the database every few changes At most 1 instance of the {@link EditBot}
  * is run for each topic.</p>
  *
- * <p>The last kind of Bot is the {@link ExtraBot}. There are 5 of those. They
+ * <p>The last kind of Bot is the {@link ExtraBot}. There are 5 of those by default. They
  * are always marked as present in a topic, but keep changing topics randomly.</p>
  *
- * Check  {@link #run()} for more information.
+ * Check  {@link #start()} for more information.
  */
-public class BotManager implements Runnable {
+public class BotManager {
     public static final String BOT_PREFIX =
         "pr-" + BotUserGenerator.BOT_ID_PREFIX;
-    private final Random random = new Random();
     private static final Logger logger = LoggerFactory
         .getLogger(BotManager.class);
 
     /**
-     * Number of main bots ({@link UserInfo} instances.
-     * Each bot will be connected to a number of Person's topics.
+     * Precision of the {@link BotTimer}.
      */
-    private static final int botCount = 20;
+    private static final long timerTickMillis = 100;
 
     /**
-     * The images in /images/avatar go from 1.png to 8.png
+     * Number of buckets in the {@link BotTimer}. With 100 millisecond ticks,
+     * one turn of the wheel takes about 51 seconds.
      */
-    private static final int maxAvatarNumber = 8;
+    private static final int timerWheelSize = 512;
+
+    /**
+     * Interval between the timer lag reports in the log.
+     */
+    private static final long timerReportIntervalMillis = 60000;
+
+    /**
+     * Interval between the chances each {@link ExtraBot} has of changing
+     * topic.
+     */
+    private static final long extraBotIntervalMillis = 2500;
+
+    /**
+     * Average interval between presence changes over all main bots. Each
+     * sampled {@link UserHandler} flips its presence on average once every
+     * {@code presenceIntervalMillis * sampleSize} milliseconds.
+     */
+    private static final long presenceIntervalMillis = 500;
+
     /**
-     * There should be only one BotManager thread, which is initialized in {@link #createInstance(PersonService, CollaborationEngine)}
+     * How long a handler that is not sampled is kept if no real user shows
+     * up in its topic.
+     */
+    private static final long idleHandlerTimeoutMillis = 30000;
+
+    /**
+     * There should be only one BotManager, which is initialized in {@link #createInstance(PersonService, PersonWriteBehindQueue, SerializableSupplier, BotProperties, MeterRegistry)}
      */
     private static BotManager instance;
 
+    /**
+     * Runs all bot tasks.
+     */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Hands the bot tasks to the workers when they are due. Each bot
+     * schedules its own runs.
+     */
+    private final BotTimer timer;
+
     private PersonService personService;
+    /**
+     * Saves the entities edited by the bots in the background.
+     */
+    private final PersonWriteBehindQueue writeQueue;
     private final SerializableSupplier<CollaborationEngine> ceSupplier;
+    private final BotProperties properties;
     /**
-     * Ids from the {@link Person} entities.
+     * Ids from the sampled {@link Person} entities, which get a bot at
+     * startup.
      */
-    private List<Integer> ids = Collections.emptyList();
+    private volatile List<Integer> sampledIds = Collections.emptyList();
     /**
-     * Main bots. There are 20 in total, each will connect to a certain number
-     * of Person's topics.
+     * Main bots. There are 20 by default, each will connect to a certain
+     * number of Person's topics.
      */
-    private List<UserInfo> bots;
+    private BotIdentityPool bots;
+
+    /**
+     * Values the edit bots type into the forms.
+     */
+    private final BotValuePools valuePools;
 
     /**
      * Extra bots that change topics randomly.
@@ -91,10 +145,11 @@ public class BotManager implements Runnable {
     private List<ExtraBot> extraBots;
 
     /**
-     * Maps a {@link UserHandler} to a {@link Person#getId()}.
-     * The {@link UserHandler} contains
+     * Maps a {@link UserHandler} to a {@link Person#getId()}. Contains the
+     * sampled topics and the topics currently opened by real users, at most
+     * {@link BotProperties#getMaxHandlers()} entries.
      */
-    private Map<Integer,UserHandler> handlerMap;
+    private final ConcurrentHashMap<Integer, UserHandler> handlerMap = new ConcurrentHashMap<>();
 
     /**
      * Maps a {@link EditBot} to an {@link Person#getId()}. The entry will be added to
@@ -103,139 +158,256 @@ public class BotManager implements Runnable {
      */
     private ConcurrentHashMap<Integer, EditBot> editBotMap = new ConcurrentHashMap<>();
 
-    /**
-     * RefreshGridMap is used to communicate with EmployeesView that a given
-     * entity has been changed in the database and should be reloaded.
-     */
-    private CollaborationMap refreshGridMap;
+    private final BotMetrics metrics;
 
-    BotManager(PersonService personService, SerializableSupplier<CollaborationEngine> ceSupplier) {
+    BotManager(PersonService personService, PersonWriteBehindQueue writeQueue,
+               SerializableSupplier<CollaborationEngine> ceSupplier,
+               BotProperties properties, MeterRegistry meterRegistry) {
         this.personService = personService;
+        this.writeQueue = writeQueue;
         this.ceSupplier  = ceSupplier ;
-        this.bots = createBotUsers(botCount);
-        this.extraBots = createBotUsers(5).stream().map(ExtraBot::new).collect(
-            Collectors.toList());
-
-        //  Connect to the refreshGrid topic.
-        ceSupplier.get().openTopicConnection(ceSupplier.get().getSystemContext(),
-            "refreshGrid", createBotUsers(1).get(0), topicConnection -> {
-                refreshGridMap = topicConnection.getNamedMap("refreshGrid");
-                return () -> refreshGridMap = null;
-            });
+        this.properties = properties;
+        this.workers = createWorkers(properties.getWorkers());
+        this.timer = new BotTimer(timerTickMillis, timerWheelSize, workers);
+        this.valuePools = new BotValuePools(properties.getValuePoolSize(),
+            properties.getValuePoolSeed());
+        this.bots = new BotIdentityPool(properties.getCount(), BOT_PREFIX,
+            properties.getMaxAvatarNumber());
+        this.extraBots = new BotIdentityPool(properties.getExtraBots(),
+            BOT_PREFIX, properties.getMaxAvatarNumber()).getAll().stream()
+            .limit(properties.getExtraBots()).map(ExtraBot::new)
+            .collect(Collectors.toList());
+        this.metrics = new BotMetrics(meterRegistry, timer, workers,
+            handlerMap::size, editBotMap::size);
     }
 
     /**
-     * Called by the {@link com.jensjansson.ce.Application} class on startup to create a BotManager instance.
+     * Called by the {@link com.jensjansson.ce.Application} class to create a
+     * BotManager instance and start the bots, once the Collaboration Engine
+     * has been configured and the demo data is in the database.
      * @param personService {@link PersonService}
+     * @param writeQueue queue for saving the entities edited by the bots
      * @param ceSupplier the Collaboration Engine instance, not {@code null}
+     * @param properties sizing of the bot fleet, not {@code null}
+     * @param meterRegistry registry for the metrics of the bots
      */
     public static void createInstance(PersonService personService,
-                                      SerializableSupplier<CollaborationEngine> ceSupplier) {
+                                      PersonWriteBehindQueue writeQueue,
+                                      SerializableSupplier<CollaborationEngine> ceSupplier,
+                                      BotProperties properties,
+                                      MeterRegistry meterRegistry) {
         if (instance != null) {
             throw new IllegalStateException(
                 "Only 1 instance should be created");
         }
-        instance = new BotManager(personService, ceSupplier);
-        Thread thread = new Thread(instance);
-        thread.setDaemon(true);
-        thread.setName("Bot-Thread");
-        thread.start();
+        instance = new BotManager(personService, writeQueue, ceSupplier,
+            properties, meterRegistry);
+        instance.start();
+    }
+
+    /**
+     * Makes sure there is a bot observing the topic of the given
+     * {@link Person}, so it can start editing when a real user opens the
+     * topic. Called when the EditorView is opened. Does nothing before the
+     * bots are initialized or if the maximum number of handlers is reached.
+     *
+     * @param personId id of the {@link Person} entity, or {@code null}
+     */
+    public static void activateTopic(Integer personId) {
+        BotManager manager = instance;
+        if (manager != null && personId != null) {
+            manager.workers.execute(
+                guard(() -> manager.getOrCreateHandler(personId, false)));
+        }
     }
 
     /**
-     * Waits until initialized. Then loops forever, waking up every 500
-     * milliseconds. Each time it wakes up the following are performed:
+     * Stops all bots. Called by the {@link com.jensjansson.ce.Application}
+     * class when the application is shut down.
+     */
+    public static void shutdown() {
+        if (instance != null) {
+            instance.timer.stop();
+            instance.workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the executor running the bots. The worker threads are daemon
+     * threads, so they don't prevent the JVM from exiting.
+     *
+     * @param workerCount number of worker threads
+     * @return the executor
+     */
+    private static ThreadPoolExecutor createWorkers(int workerCount) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        int threads = Math.max(1, workerCount);
+        return new ThreadPoolExecutor(threads, threads, 0,
+            TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                thread.setName("Bot-Worker-" + threadNumber.incrementAndGet());
+                return thread;
+            });
+    }
+
+    /**
+     * Schedules a bot task on the timer.
+     *
+     * @param task the task to run once
+     * @param delayMillis delay before running the task
+     * @return handle for cancelling the task
+     */
+    private BotTimer.Timeout schedule(Runnable task, long delayMillis) {
+        return timer.schedule(guard(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules a task to run repeatedly with a fixed delay between the runs.
+     *
+     * @param task the task to run
+     * @param initialDelayMillis delay before the first run
+     * @param delayMillis delay between the runs
+     */
+    private void scheduleRepeated(Runnable task, long initialDelayMillis,
+        long delayMillis) {
+        schedule(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleRepeated(task, delayMillis, delayMillis);
+            }
+        }, initialDelayMillis);
+    }
+
+    /**
+     * Logs the lag of the timer, how late the bot tasks are started compared
+     * to their deadlines.
+     */
+    private void reportTimerLag() {
+        logger.debug("Bot timer: {} pending, {} run, average lag {} ms, max lag {} ms",
+            timer.getPendingCount(), timer.getExpiredCount(),
+            String.format("%.1f", timer.getAverageLagMillis()),
+            String.format("%.1f", timer.takeMaxLagMillis()));
+    }
+
+    /**
+     * Reads the sampled ids, then creates the sampled handlers in batches
+     * and schedules the bots. Each bot runs as its own task:
      * <ol>
-     *     <li>The {@link EditBot#run()} method is called for each active
-     *     EditBot</li>
-     *     <li>One Extra Bot has 20% chance of changing topic</li>
-     *     <li>One main bot will be selected. If it has no users connected to
-     *     that topic, it will have 50% chance of changing the value of
-     *     {@link PresenceManager#markAsPresent(boolean)}</li>
+     *     <li>Each active {@link EditBot} runs every 2 seconds, see
+     *     {@link EditBot#run()}</li>
+     *     <li>Each Extra Bot has 20% chance of changing topic every 2.5
+     *     seconds</li>
+     *     <li>Each sampled main bot presence, see {@link UserHandler}, has 50% chance
+     *     of changing the value of {@link PresenceManager#markAsPresent(boolean)}
+     *     at a random interval, unless there are users connected to that
+     *     topic. Over all sampled topics, this happens on average every 500
+     *     milliseconds.</li>
      * </ol>
      */
-    @Override
-    public synchronized void run() {
-        // We need to wait until the DataGenerator has run and initialized the
-        // database.
-        boolean initialized = false;
-        while (!initialized) {
-            doWait(1000);
-            initialized = initializeIfPossible();
-        }
+    void start() {
+        schedule(() -> {
+            if (initialize()) {
+                rampUp(0);
+                startExtraBots();
+                scheduleRepeated(this::reportTimerLag,
+                    timerReportIntervalMillis, timerReportIntervalMillis);
+            } else {
+                logger.warn("No persons in the database, bots not started");
+            }
+        }, 0);
+    }
 
-        // Make the extra bots present in random topics.
-        IntStream.range(0,extraBots.size()).forEach(this::createPresence);
+    /**
+     * Makes the extra bots present in random topics and schedules them to
+     * change topics. The start times are spread so the bots don't all move
+     * at the same moment. Without any topics to move between, the extra bots
+     * are not started.
+     */
+    private void startExtraBots() {
+        if (properties.getExtraBotTopics() < 1) {
+            if (!extraBots.isEmpty()) {
+                logger.warn("No topics for the extra bots, extra bots not started");
+            }
+            return;
+        }
+        long spread = extraBotIntervalMillis / Math.max(1, extraBots.size());
+        for (int i = 0; i < extraBots.size(); i++) {
+            int index = i;
+            createPresence(index);
+            scheduleRepeated(() -> {
+                // 20% chance by default of changing the presence of the
+                // extra bot.
+                if (random().nextDouble() < properties.getExtraBotHopProbability()) {
+                    createPresence(index);
+                }
+            }, extraBotIntervalMillis + i * spread, extraBotIntervalMillis);
+        }
+    }
 
-        // Loop forever, i goes from 0 to extraBots.size() - 1, then back to 0
-        for (int i = 0; true; i = (i + 1) % extraBots.size()) {
-            // 20% chance of changing the presence of extra bot i.
-            if(random.nextDouble() < 0.2) {
-                // Marks bot extraBots[i] as present in a random topic.
-                createPresence(i);
+    /**
+     * Schedules the next random presence change of a main bot. The delay is
+     * random, so the changes of all the handlers together average out to one
+     * every {@link #presenceIntervalMillis}.
+     *
+     * @param handler the handler to schedule
+     */
+    private void schedulePresenceChange(UserHandler handler) {
+        long meanDelay = presenceIntervalMillis * Math.max(1, sampledIds.size());
+        long delay = 1 + random().nextLong(2 * meanDelay);
+        schedule(() -> {
+            if (handlerMap.get(handler.id) != handler) {
+                // The handler has been closed.
+                return;
             }
-            // Gets the UserHandler for a random topic. The topic is always valid.
-            UserHandler handler = handlerMap.get(ids.get(random.nextInt(ids.size())));
             // Ignore if has users (eg: someone is editing the topic).
             // We want topics with users to be active.
-            if(handler.hasUsers) continue;
-            // Randomly change the presence in the topic.
-            handler.presenceManager.markAsPresent(random.nextBoolean());
-
-            // Sleep for 500 milliseconds
-            doWait(500);
-
-            // Run 1 iteration for each edit bot.
-            editBotMap.values().stream().filter(b -> !b.shouldStop)
-                .collect(Collectors.toList()).forEach(editBot -> {
-                try {
-                    editBot.run();
-                } catch (IllegalStateException e) {
-                    logger.warn("Bot threw exception", e);
-                }
-            });
-        }
+            if (!handler.hasUsers) {
+                // Randomly change the presence in the topic.
+                handler.markAsPresent(random().nextBoolean());
+            }
+            schedulePresenceChange(handler);
+        }, delay);
     }
 
-    // Wait, ignore InterrupedException
-    private void doWait(int milliseconds) {
-        try {
-            wait(milliseconds);
-        } catch (InterruptedException e) {
-            logger.error("Thread interrupted", e);
-        }
+    /**
+     * Wraps a bot task so that an exception thrown by one bot doesn't cancel
+     * its periodic runs or the runs of the other bots.
+     *
+     * @param task the bot task
+     * @return the wrapped task
+     */
+    private static Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warn("Bot threw exception", e);
+            }
+        };
     }
 
     /**
-     * Creates the specified number of {@link UserInfo} instances, which will
-     * be used for bots.
+     * The bots run on several threads, so each run uses the random generator
+     * of its own thread.
      *
-     * @param count number of bot users to create.
-     * @return List of {@link UserInfo} instances created.
-     */
-    private static List<UserInfo> createBotUsers(int count) {
-        return IntStream.range(0, count).mapToObj(i -> {
-            UserInfo bot = BotUserGenerator.generateBotUser(BOT_PREFIX);
-            String image = String
-                .format("images/avatars/%d.png", (i % maxAvatarNumber) + 1);
-            bot.setImage(image);
-            return bot;
-        }).collect(Collectors.toList());
+     * @return random generator for the current thread
+     */
+    private static ThreadLocalRandom random() {
+        return ThreadLocalRandom.current();
     }
 
     /**
-     * Fetch Person entities from the database and initialize if they are available.
-     * @return true if initialized
+     * Fetch the sampled Person ids from the database. Only the first
+     * {@link BotProperties#getSampleSize()} ids are read, without loading the
+     * entities.
+     * @return true if there were any ids
      */
-    private boolean initializeIfPossible() {
-        this.ids = personService.findByQuery(null).stream().map(Person::getId)
-            .collect(Collectors.toList());
-        if (this.ids.isEmpty()) {
-            // Still not available.
-            return false;
-        }
-        fillPresenceObservers();
-        return true;
+    private boolean initialize() {
+        this.sampledIds = personService
+            .findIds(Math.max(1, properties.getSampleSize()));
+        return !this.sampledIds.isEmpty();
     }
 
     /**
@@ -243,7 +415,9 @@ public class BotManager implements Runnable {
      * @param i Bot to change (index in extraBots list)
      */
     private void createPresence(int i) {
-        String topic = createTopic(random.nextInt(20) + 1);
+        List<Integer> ids = sampledIds;
+        int topicCount = Math.min(ids.size(), properties.getExtraBotTopics());
+        String topic = createTopic(ids.get(random().nextInt(topicCount)));
         ExtraBot bot = extraBots.get(i);
         PresenceManager previousPresenceManager = bot.presenceManager;
         if (previousPresenceManager != null && topic
@@ -263,25 +437,85 @@ public class BotManager implements Runnable {
     }
 
     /**
-     * Fills handlerMap. For each of the available {@link Person} instances,
-     * a bot will be assigned and a new PresenceManager will be created.
-     * The PresenceManager has a 50% chance of being marked as present initially.
+     * Creates the handlers for one batch of the sampled {@link Person}
+     * instances and schedules the next batch, so the topic connections are
+     * opened gradually instead of all at once.
+     *
+     * @param from index in sampledIds of the first handler of the batch
      */
-    private void fillPresenceObservers() {
-        Map<Integer, UserHandler> handlerMap = new HashMap<>();
-        for (Integer id : ids) {
-            UserInfo userInfo = bots.get(id % bots.size());
-            String topic = createTopic(id);
+    private void rampUp(int from) {
+        List<Integer> ids = sampledIds;
+        int to = Math.min(ids.size(),
+            from + Math.max(1, properties.getRampUpBatchSize()));
+        ids.subList(from, to).forEach(id -> getOrCreateHandler(id, true));
+        if (to < ids.size()) {
+            schedule(() -> rampUp(to), properties.getRampUpIntervalMillis());
+        } else {
+            logger.debug("Created {} sampled bot handlers", ids.size());
+        }
+    }
+
+    /**
+     * Gets the handler of the given {@link Person} id, creating it if
+     * needed. A bot will be assigned and a new PresenceManager will be
+     * created. The PresenceManager of a sampled handler has a 50% chance of
+     * being marked as present initially and gets its own scheduled presence
+     * change.
+     *
+     * @param id id of the {@link Person} entity
+     * @param sampled true if the handler is kept for the lifetime of the
+     * application, false if it is closed once all real users have left
+     * @return the handler, or {@code null} if the maximum number of handlers
+     * has been reached
+     */
+    private UserHandler getOrCreateHandler(Integer id, boolean sampled) {
+        UserHandler existing = handlerMap.get(id);
+        if (existing != null) {
+            return existing;
+        }
+        if (handlerMap.size() >= properties.getMaxHandlers()) {
+            logger.debug("No bot for {}, {} handlers already active", id,
+                handlerMap.size());
+            return null;
+        }
+        UserHandler created = handlerMap.computeIfAbsent(id, key -> {
+            UserInfo userInfo = bots.get(key);
+            String topic = createTopic(key);
             PresenceManager presenceManager = new PresenceManager(
                     ceSupplier.get().getSystemContext(), userInfo, topic, ceSupplier);
-            presenceManager.markAsPresent(random.nextBoolean());
-            UserHandler userHandler = new UserHandler(id, userInfo, topic,
-                presenceManager);
-            presenceManager.setPresenceHandler(userHandler);
-            handlerMap.put(id, userHandler);
+            boolean present = sampled && random().nextBoolean();
+            presenceManager.markAsPresent(present);
+            return new UserHandler(key, userInfo, topic, presenceManager,
+                sampled, present);
+        });
+        // The handler is set outside computeIfAbsent, as it may call back
+        // into the map.
+        if (created.handlerSet.compareAndSet(false, true)) {
+            created.presenceManager.setPresenceHandler(created);
+            if (sampled) {
+                schedulePresenceChange(created);
+            } else {
+                schedule(() -> releaseHandler(created),
+                    idleHandlerTimeoutMillis);
+            }
         }
+        return created;
+    }
 
-        this.handlerMap = Collections.unmodifiableMap(handlerMap);
+    /**
+     * Closes a handler that is not sampled once all real users have left its
+     * topic.
+     *
+     * @param handler the handler to close
+     */
+    private void releaseHandler(UserHandler handler) {
+        if (handler.sampled || handler.hasUsers) {
+            return;
+        }
+        if (handlerMap.remove(handler.id, handler)) {
+            handler.presenceManager.close();
+            logger.debug("Released bot handler for {}", handler.id);
+        }
     }
 
     /**
@@ -313,22 +547,52 @@ public class BotManager implements Runnable {
         private UserInfo userInfo;
         private String topic;
         private PresenceManager presenceManager;
+        /**
+         * True if the handler was created at startup and is never closed.
+         */
+        private final boolean sampled;
+        /**
+         * Set once the handler has been registered to the presenceManager.
+         */
+        private final AtomicBoolean handlerSet = new AtomicBoolean();
 
         /**
-         * List of real users (not bots).
+         * List of real users (not bots). Presence events for different
+         * topics arrive on different threads.
          */
-        private Set<UserInfo> users = new HashSet<>();
+        private Set<UserInfo> users = ConcurrentHashMap.newKeySet();
         /**
          * If there are real users (not bots) connected to the topic.
          */
         private volatile boolean hasUsers;
+        /**
+         * If the bot is marked as present in the topic.
+         */
+        private boolean present;
 
         public UserHandler(Integer id, UserInfo userInfo, String topic,
-            PresenceManager presenceManager) {
+            PresenceManager presenceManager, boolean sampled,
+            boolean present) {
             this.id = id;
             this.userInfo = userInfo;
             this.topic = topic;
             this.presenceManager = presenceManager;
+            this.sampled = sampled;
+            this.present = present;
+        }
+
+        /**
+         * Marks the bot as present or absent in the topic, counting the
+         * changes in the metrics.
+         *
+         * @param present true to mark the bot as present
+         */
+        private synchronized void markAsPresent(boolean present) {
+            presenceManager.markAsPresent(present);
+            if (this.present != present) {
+                this.present = present;
+                metrics.presenceChanged(present);
+            }
         }
 
         @Override
@@ -371,19 +635,21 @@ public class BotManager implements Runnable {
          * editBotMap.
          *
          * If hasUsers changes from true to false, the {@link EditBot} will be
-         * removed from the editBotMap and discarded.
+         * removed from the editBotMap and discarded. A handler that is not
+         * sampled is then closed.
          */
-        private void update() {
+        private synchronized void update() {
             boolean hadUsers = hasUsers;
             hasUsers = !users.isEmpty();
             if (hadUsers == hasUsers) {
                 // If hasUsers hasn't changed, nothing needs to be done.
                 return;
             }
+            metrics.usersChanged(hasUsers);
 
             if (hasUsers) {
                 // The first real user connected to the topic.
-                presenceManager.markAsPresent(true);
+                markAsPresent(true);
                 Person person = personService.get(id).orElse(null);
                 editBotMap.computeIfAbsent(id,
                     id -> new EditBot(topic, userInfo, person));
@@ -396,6 +662,9 @@ public class BotManager implements Runnable {
                     // This is not expected to happen.
                     logger.debug("EditBot not removed for {}", id);
                 }
+                if (!sampled) {
+                    workers.execute(guard(() -> releaseHandler(this)));
+                }
             }
         }
 
@@ -408,7 +677,7 @@ public class BotManager implements Runnable {
         /**
          * How much time to wait between edits.
          */
-        private final int delayInSeconds = 2;
+        private final long delayMillis = properties.getEditDelayMillis();
 
         /**
          * UserInfo for the bot.
@@ -416,6 +685,10 @@ public class BotManager implements Runnable {
         UserInfo user;
         volatile TopicConnection topic;
         volatile Registration topicRegistration;
+        /**
+         * Number of users focused on each field of the topic.
+         */
+        volatile FieldEditorIndex editors;
         /**
          * Entity that will be changed.
          */
@@ -425,6 +698,12 @@ public class BotManager implements Runnable {
          */
         volatile boolean shouldStop;
 
+        /**
+         * The next scheduled run of this bot, or {@code null} if not
+         * scheduled.
+         */
+        private BotTimer.Timeout nextRun;
+
         /**
          * How many edits to do before saving.
          */
@@ -433,11 +712,6 @@ public class BotManager implements Runnable {
          * How many edits have been done since the last save.
          */
         int editCounter = 0;
-        /**
-         * Last time the run method was called. Used to determine if enough
-         * time has passed between edits.
-         */
-        Instant lastExecution = null;
         /**
          * A single edit corresponds to multiple steps.
          * Typically, those are:
@@ -448,7 +722,7 @@ public class BotManager implements Runnable {
          * </ol>
          * There needs to be a delay between each step so the user can see what is happening.
          *
-         * @see BotFieldEditor#editRandomField(TopicConnection, UserInfo)
+         * @see BotFieldEditor#editRandomField(TopicConnection, UserInfo, BotValuePools, FieldEditorIndex)
          */
         ListIterator<Runnable> currentEditSteps;
 
@@ -459,8 +733,10 @@ public class BotManager implements Runnable {
             this.topicRegistration = ceSupplier.get()
                 .openTopicConnection(ceSupplier.get().getSystemContext(), topicId,
                     user, topic -> {
+                        this.editors = FieldEditorIndex.subscribe(topic);
                         this.topic = topic;
                         log("Topic connected");
+                        scheduleNextRun(0);
                         return () -> {
                             shouldStop = true;
                             this.topic = null;
@@ -470,17 +746,31 @@ public class BotManager implements Runnable {
         }
 
         /**
-         * Called by the main thread every 500 milliseconds while present
-         * in the editBotMap.
+         * Schedules the next run of this bot on the timer, unless the bot
+         * has been stopped.
          *
-         * Nothing will be done if the bot is stopped, not connected to the
-         * topic or if not enough time has passed between edits.
+         * @param delayMillis delay before the next run
+         */
+        private synchronized void scheduleNextRun(long delayMillis) {
+            if (!shouldStop) {
+                nextRun = schedule(this, delayMillis);
+            }
+        }
+
+        /**
+         * Called by a worker thread when the timer of the bot expires, as
+         * soon as the topic is connected and then every 2 seconds while
+         * present in the editBotMap. The runs of one bot never overlap, as the
+         * next run is only scheduled at the end of the previous one.
+         *
+         * Nothing will be done if the bot is stopped or not connected to the
+         * topic.
          *
          * Otherwise, one of the following will happen
          * <ol>
          *     <li>If there is no edit in progress, and not enough edits have
          *     been performed,
-         *     {@link BotFieldEditor#editRandomField(TopicConnection, UserInfo)}
+         *     {@link BotFieldEditor#editRandomField(TopicConnection, UserInfo, BotValuePools, FieldEditorIndex)}
          *     is called to create a new edit.</li>
          *     <li>If there is an edit in progress, the next step will be executed.
          *     If it is the last step of the edit, editCount will be incremented.
@@ -491,21 +781,25 @@ public class BotManager implements Runnable {
          */
         @Override
         public void run() {
-            if (topicRegistration == null || shouldStop) {
-                return; // Not connected yet or stopped
+            if (topic == null || shouldStop) {
+                return; // Not connected or stopped
             }
-            boolean shouldWait = lastExecution != null && lastExecution.plusSeconds(delayInSeconds)
-                .isAfter(Instant.now());
-            if (shouldWait) {
-                return; // Wait until enough time has passed between edits
+            try {
+                runStep();
+            } finally {
+                scheduleNextRun(delayMillis);
             }
-            lastExecution = Instant.now();
+        }
+
+        private void runStep() {
             if (editCounter >= saveAfter) {
-                // Enough edits have been performed, save the entity to the
-                // database and send a notification to the topic.
+                // Enough edits have been performed, queue the entity to be
+                // saved to the database and send a notification to the topic.
                 log("Called save");
-                BotSaver.save(ceSupplier.get(), topic, person, personService, user);
-                refreshGridMap.put(String.valueOf(person.getId()), person);
+                metrics.save(() -> BotSaver.save(ceSupplier.get(), topic,
+                    person, writeQueue, user));
+                // Tell the grids that the entity should be reloaded.
+                PersonRefreshChannel.getInstance().publish(person);
 
                 // reset values for the next edit.
                 editCounter = 0;
@@ -518,21 +812,26 @@ public class BotManager implements Runnable {
                     // If this was the last step of the current edit,
                     // increment editCounter
                     ++editCounter;
+                    metrics.edited();
                 }
             } else {
                 // Create a new random edit.
                 log("Random edit");
-                currentEditSteps = BotFieldEditor.editRandomField(topic, user)
-                    .listIterator();
+                currentEditSteps = BotFieldEditor.editRandomField(topic, user, valuePools,
+                    editors).listIterator();
             }
         }
 
         /**
          * Disconnect from topic and mark bot for removal.
          */
-        void stop() {
+        synchronized void stop() {
             log("Bot removed");
             this.shouldStop = true;
+            if (nextRun != null) {
+                nextRun.cancel();
+                nextRun = null;
+            }
             this.topicRegistration.remove();
             this.topicRegistration = null;
         }
@@ -545,16 +844,18 @@ public class BotManager implements Runnable {
          * Generates a random number that will be used as the number of edits a
          * specific bot will do before saving the entity.
          *
-         * @return A random number between 2 and 5.
+         * @return A random number between 2 and 5 by default.
          */
         private int generateNumberOfEditsBeforeSave() {
-            return 2 + (random.nextInt(4));
+            int min = properties.getMinEditsBeforeSave();
+            int max = Math.max(min, properties.getMaxEditsBeforeSave());
+            return min + (random().nextInt(max - min + 1));
         }
 
     }
 
     /**
-     * Each {@link Person} in the database has one of the 20 main bot users
+     * Each {@link Person} topic with a bot has one of the 20 main bot users
      * assigned to it. Additionally, there are 5 of these ExtraBots that
      * connect to random Person's topics.
      */
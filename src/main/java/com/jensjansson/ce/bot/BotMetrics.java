@@ -0,0 +1,122 @@
+package com.jensjansson.ce.bot;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters of the bots, registered in the application's {@link MeterRegistry}.
+ * The rates, like edits per second, are derived from the counters by the
+ * registry.
+ *
+ * <ul>
+ *     <li>{@code bots.timer.tick}: how long one tick of the {@link BotTimer}
+ *     takes</li>
+ *     <li>{@code bots.timer.lag}: how late the bot tasks are handed to the
+ *     workers compared to their deadlines</li>
+ *     <li>{@code bots.timer.pending}: tasks waiting for their deadline</li>
+ *     <li>{@code bots.workers.queue}: tasks waiting for a worker thread</li>
+ *     <li>{@code bots.handlers}: topics observed by a main bot</li>
+ *     <li>{@code bots.editors}: live {@link BotManager.EditBot}s</li>
+ *     <li>{@code bots.edits}: field edits completed by the edit bots</li>
+ *     <li>{@code bots.saves}: saves by the edit bots and how long
+ *     {@link BotSaver#save} takes</li>
+ *     <li>{@code bots.presence.transitions}: real users arriving to or
+ *     leaving a topic, and the main bots marking themselves present or
+ *     absent, by {@code transition}</li>
+ *     <li>{@code bots.avatars.cas.failures}, {@code bots.avatars.retries},
+ *     {@code bots.avatars.dropped}: see {@link BotAvatarUtil}</li>
+ * </ul>
+ */
+class BotMetrics {
+
+    private final Timer saves;
+    private final Counter edits;
+    private final Counter usersArrived;
+    private final Counter usersLeft;
+    private final Counter markedPresent;
+    private final Counter markedAbsent;
+
+    BotMetrics(MeterRegistry registry, BotTimer timer,
+            ThreadPoolExecutor workers, Supplier<Number> handlerCount,
+            Supplier<Number> editorCount) {
+        timer.bindTo(registry, "bots.timer");
+        Gauge.builder("bots.workers.queue", workers,
+                executor -> executor.getQueue().size())
+                .description("Bot tasks waiting for a worker thread")
+                .register(registry);
+        Gauge.builder("bots.handlers", handlerCount)
+                .description("Topics observed by a main bot")
+                .register(registry);
+        Gauge.builder("bots.editors", editorCount)
+                .description("Edit bots connected to a topic")
+                .register(registry);
+
+        edits = Counter.builder("bots.edits")
+                .description("Field edits completed by the edit bots")
+                .register(registry);
+        saves = Timer.builder("bots.saves")
+                .description("Saves by the edit bots")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+
+        usersArrived = transitions(registry, "users-arrived");
+        usersLeft = transitions(registry, "users-left");
+        markedPresent = transitions(registry, "marked-present");
+        markedAbsent = transitions(registry, "marked-absent");
+
+        FunctionCounter.builder("bots.avatars.cas.failures", BotAvatarUtil.class,
+                type -> BotAvatarUtil.getCasFailureCount())
+                .description("Avatar list replaces that failed because the list had changed")
+                .register(registry);
+        FunctionCounter.builder("bots.avatars.retries", BotAvatarUtil.class,
+                type -> BotAvatarUtil.getRetryCount())
+                .description("Retried batches of avatar changes")
+                .register(registry);
+        FunctionCounter.builder("bots.avatars.dropped", BotAvatarUtil.class,
+                type -> BotAvatarUtil.getDroppedBatchCount())
+                .description("Batches of avatar changes dropped after too many attempts")
+                .register(registry);
+    }
+
+    private static Counter transitions(MeterRegistry registry,
+            String transition) {
+        return Counter.builder("bots.presence.transitions")
+                .description("Presence changes in the topics of the main bots")
+                .tag("transition", transition).register(registry);
+    }
+
+    void edited() {
+        edits.increment();
+    }
+
+    /**
+     * Runs a save of an edit bot, recording how long it took.
+     *
+     * @param save the save
+     */
+    void save(Runnable save) {
+        saves.record(save);
+    }
+
+    /**
+     * @param hasUsers true if the first real user arrived to a topic, false
+     * if the last one left
+     */
+    void usersChanged(boolean hasUsers) {
+        (hasUsers ? usersArrived : usersLeft).increment();
+    }
+
+    /**
+     * @param present true if a main bot marked itself present, false if
+     * absent
+     */
+    void presenceChanged(boolean present) {
+        (present ? markedPresent : markedAbsent).increment();
+    }
+}
@@ -0,0 +1,215 @@
+package com.jensjansson.ce.bot;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Sizing of the bot fleet, configured with the {@code bots.*} application
+ * properties.
+ *
+ * <p>Only a sample of the {@link com.jensjansson.ce.data.entity.Person}
+ * topics get a bot handler at startup, and those are created gradually.
+ * Handlers for the other topics are created when a real user opens the
+ * topic, so memory use and startup time don't grow with the size of the
+ * Person table.</p>
+ */
+@ConfigurationProperties(prefix = "bots")
+public class BotProperties {
+
+    /**
+     * Number of threads running the bots.
+     */
+    private int workers = 2;
+
+    /**
+     * Number of main bot identities. Each identity is shared by all the
+     * topics whose id maps to it.
+     */
+    private int count = 20;
+
+    /**
+     * Number of extra bots that keep changing topics.
+     */
+    private int extraBots = 5;
+
+    /**
+     * Number of topics the extra bots move between. With less than 1, the
+     * extra bots are not started.
+     */
+    private int extraBotTopics = 20;
+
+    /**
+     * The images in /images/avatar go from 1.png to 8.png
+     */
+    private int maxAvatarNumber = 8;
+
+    /**
+     * Number of topics that get a bot handler at startup.
+     */
+    private int sampleSize = 100;
+
+    /**
+     * Maximum number of bot handlers alive at the same time, including the
+     * sampled ones. Topics opened beyond this limit get no bot.
+     */
+    private int maxHandlers = 1000;
+
+    /**
+     * Number of sampled handlers created at a time during startup.
+     */
+    private int rampUpBatchSize = 10;
+
+    /**
+     * Delay between two batches of sampled handlers during startup.
+     */
+    private long rampUpIntervalMillis = 200;
+
+    /**
+     * Delay between two steps of an edit bot.
+     */
+    private long editDelayMillis = 2000;
+
+    /**
+     * Least number of edits an edit bot makes before saving.
+     */
+    private int minEditsBeforeSave = 2;
+
+    /**
+     * Most edits an edit bot makes before saving.
+     */
+    private int maxEditsBeforeSave = 5;
+
+    /**
+     * Chance of an extra bot changing topic every 2.5 seconds.
+     */
+    private double extraBotHopProbability = 0.2;
+
+    /**
+     * Number of generated names and emails the bots pick from.
+     */
+    private int valuePoolSize = 1000;
+
+    /**
+     * Seed for generating the names and emails the bots pick from.
+     */
+    private long valuePoolSeed = 123L;
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public int getExtraBots() {
+        return extraBots;
+    }
+
+    public void setExtraBots(int extraBots) {
+        this.extraBots = extraBots;
+    }
+
+    public int getExtraBotTopics() {
+        return extraBotTopics;
+    }
+
+    public void setExtraBotTopics(int extraBotTopics) {
+        this.extraBotTopics = extraBotTopics;
+    }
+
+    public int getMaxAvatarNumber() {
+        return maxAvatarNumber;
+    }
+
+    public void setMaxAvatarNumber(int maxAvatarNumber) {
+        this.maxAvatarNumber = maxAvatarNumber;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    public int getMaxHandlers() {
+        return maxHandlers;
+    }
+
+    public void setMaxHandlers(int maxHandlers) {
+        this.maxHandlers = maxHandlers;
+    }
+
+    public int getRampUpBatchSize() {
+        return rampUpBatchSize;
+    }
+
+    public void setRampUpBatchSize(int rampUpBatchSize) {
+        this.rampUpBatchSize = rampUpBatchSize;
+    }
+
+    public long getRampUpIntervalMillis() {
+        return rampUpIntervalMillis;
+    }
+
+    public void setRampUpIntervalMillis(long rampUpIntervalMillis) {
+        this.rampUpIntervalMillis = rampUpIntervalMillis;
+    }
+
+    public long getEditDelayMillis() {
+        return editDelayMillis;
+    }
+
+    public void setEditDelayMillis(long editDelayMillis) {
+        this.editDelayMillis = editDelayMillis;
+    }
+
+    public int getMinEditsBeforeSave() {
+        return minEditsBeforeSave;
+    }
+
+    public void setMinEditsBeforeSave(int minEditsBeforeSave) {
+        this.minEditsBeforeSave = minEditsBeforeSave;
+    }
+
+    public int getMaxEditsBeforeSave() {
+        return maxEditsBeforeSave;
+    }
+
+    public void setMaxEditsBeforeSave(int maxEditsBeforeSave) {
+        this.maxEditsBeforeSave = maxEditsBeforeSave;
+    }
+
+    public double getExtraBotHopProbability() {
+        return extraBotHopProbability;
+    }
+
+    public void setExtraBotHopProbability(double extraBotHopProbability) {
+        this.extraBotHopProbability = extraBotHopProbability;
+    }
+
+    public int getValuePoolSize() {
+        return valuePoolSize;
+    }
+
+    public void setValuePoolSize(int valuePoolSize) {
+        this.valuePoolSize = valuePoolSize;
+    }
+
+    public long getValuePoolSeed() {
+        return valuePoolSeed;
+    }
+
+    public void setValuePoolSeed(long valuePoolSeed) {
+        this.valuePoolSeed = valuePoolSeed;
+    }
+}
@@ -1,43 +1,47 @@
 package com.jensjansson.ce.bot;
 
-import java.io.IOException;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.jensjansson.ce.data.entity.Person;
-import com.jensjansson.ce.data.service.PersonService;
+import com.jensjansson.ce.data.service.PersonWriteBehindQueue;
 import com.jensjansson.ce.views.persons.EditorView;
+import com.jensjansson.ce.views.persons.EmployeesView;
 
-import com.vaadin.collaborationengine.CollaborationBinder;
 import com.vaadin.collaborationengine.CollaborationEngine;
+import com.vaadin.collaborationengine.CollaborationMap;
+import com.vaadin.collaborationengine.FormManager;
 import com.vaadin.collaborationengine.TopicConnection;
 import com.vaadin.collaborationengine.UserInfo;
 
 class BotSaver {
 
-    static void save(CollaborationEngine ce, TopicConnection personTopic,
-            Person person, PersonService personService, UserInfo user) {
+    /**
+     * Copies the field values of the topic to the entity and queues it to be
+     * written to the database. The bot doesn't wait for the write.
+     *
+     * @return future completed when the save notification has been relayed
+     */
+    static CompletableFuture<Void> save(CollaborationEngine ce,
+            TopicConnection personTopic, Person person,
+            PersonWriteBehindQueue writeQueue, UserInfo user) {
         getPersonFromFields(person, personTopic);
-        personService.update(person);
-        EditorView.sendSaveNotification(personTopic.getNamedMap("save"), user);
+        writeQueue.save(person);
+        return EditorView.sendSaveNotification(
+                EmployeesView.getTopicId(person), user);
     }
 
     private static Person getPersonFromFields(Person person,
             TopicConnection topic) {
-        person.setFirstName(getFieldValue(topic, "firstName", String.class));
-        person.setLastName(getFieldValue(topic, "lastName", String.class));
-        person.setEmail(getFieldValue(topic, "email", String.class));
-        person.setPhoneNumber(
-                getFieldValue(topic, "phoneNumber", String.class));
-        person.setHappiness(getFieldValue(topic, "happiness", String.class));
+        // All values are read from the same map instance. The binder keeps
+        // the values in a map named after its form manager.
+        CollaborationMap fields = topic
+                .getNamedMap(FormManager.class.getName());
+        person.setFirstName(fields.get("firstName", String.class));
+        person.setLastName(fields.get("lastName", String.class));
+        person.setEmail(fields.get("email", String.class));
+        person.setPhoneNumber(fields.get("phoneNumber", String.class));
+        person.setHappiness(fields.get("happiness", String.class));
         return person;
     }
 
-    private static <T> T getFieldValue(TopicConnection topic,
-            String propertyName, Class<T> valueType) {
-        return topic.getNamedMap(CollaborationBinder.class.getName())
-                .get(propertyName, valueType);
-    }
-
 }
@@ -0,0 +1,278 @@
+package com.jensjansson.ce.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel running the bot steps, saves and presence changes.
+ *
+ * <p>A single timer thread advances the wheel once per tick and hands the
+ * expired tasks to the bot workers. Scheduling and cancelling a task costs
+ * O(1), and a bot is only touched when its deadline expires, so the cost of
+ * a tick depends on the number of expiring tasks rather than on the number
+ * of live bots.</p>
+ *
+ * <p>The timer keeps track of the lag, which is how late each task was
+ * handed to the workers compared to its deadline.</p>
+ */
+class BotTimer {
+
+    private static final Logger logger = LoggerFactory
+        .getLogger(BotTimer.class);
+
+    private final long tickNanos;
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final Executor executor;
+
+    /**
+     * Timeouts scheduled since the last tick. They are put in the wheel by
+     * the timer thread, so the wheel itself is never shared between threads.
+     */
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final long startTime = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean stopped;
+    private long tick;
+
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong totalLagNanos = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    /**
+     * Meters of the ticks and of the lag, {@code null} until the timer is
+     * bound to a registry.
+     */
+    private volatile Timer tickMeter;
+    private volatile Timer lagMeter;
+
+    /**
+     * Creates and starts a timer.
+     *
+     * @param tickMillis duration of a tick, the precision of the timer
+     * @param wheelSize number of buckets in the wheel, rounded up to a power
+     * of two
+     * @param executor executor running the expired tasks
+     */
+    @SuppressWarnings("unchecked")
+    BotTimer(long tickMillis, int wheelSize, Executor executor) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = size - 1;
+        this.executor = executor;
+        this.thread = new Thread(this::runTicks);
+        thread.setDaemon(true);
+        thread.setName("Bot-Timer");
+        thread.start();
+    }
+
+    /**
+     * Schedules a task to be run once after the given delay.
+     *
+     * @param task the task, not {@code null}
+     * @param delay delay from now
+     * @param unit unit of the delay
+     * @return handle for cancelling the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime
+            + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(task, deadline);
+        if (stopped) {
+            timeout.state.set(Timeout.CANCELLED);
+        } else {
+            pending.incrementAndGet();
+            newTimeouts.add(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the timer. Tasks that have not expired yet are never run.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Registers meters of the timer: the duration of the ticks, the lag of
+     * the expired tasks and the number of pending tasks.
+     *
+     * @param registry the registry
+     * @param prefix prefix of the meter names
+     */
+    void bindTo(MeterRegistry registry, String prefix) {
+        Gauge.builder(prefix + ".pending", pending, AtomicInteger::get)
+            .description("Tasks waiting for their deadline")
+            .register(registry);
+        lagMeter = Timer.builder(prefix + ".lag")
+            .description("How late the tasks are run compared to their deadlines")
+            .publishPercentiles(0.5, 0.99)
+            .register(registry);
+        tickMeter = Timer.builder(prefix + ".tick")
+            .description("Duration of one tick")
+            .register(registry);
+    }
+
+    /**
+     * @return number of tasks waiting for their deadline
+     */
+    int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return number of tasks that have been handed to the workers
+     */
+    long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return average lag of the expired tasks, in milliseconds
+     */
+    double getAverageLagMillis() {
+        long count = expiredCount.get();
+        return count == 0 ? 0
+            : totalLagNanos.get() / (double) count / 1_000_000;
+    }
+
+    /**
+     * Gets the highest lag since the previous call and resets it.
+     *
+     * @return highest lag of an expired task, in milliseconds
+     */
+    double takeMaxLagMillis() {
+        return maxLagNanos.getAndSet(0) / 1_000_000.0;
+    }
+
+    private void runTicks() {
+        while (!stopped) {
+            long tickDeadline = (tick + 1) * tickNanos;
+            long sleep = tickDeadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            long tickStart = System.nanoTime();
+            transferNewTimeouts();
+            expire(wheel[(int) (tick & mask)], tickStart - startTime);
+            tick++;
+            Timer meter = tickMeter;
+            if (meter != null) {
+                meter.record(System.nanoTime() - tickStart,
+                    TimeUnit.NANOSECONDS);
+            }
+        }
+        logger.debug("Bot timer stopped");
+    }
+
+    /**
+     * Puts the timeouts scheduled since the last tick to their buckets.
+     */
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            // Deadlines in the past expire on the current tick.
+            long ticks = Math.max(tick, timeout.deadline / tickNanos);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket, long now) {
+        Timer lagMeter = this.lagMeter;
+        int kept = 0;
+        for (Timeout timeout : bucket) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            if (timeout.expire()) {
+                pending.decrementAndGet();
+                long lag = Math.max(0, now - timeout.deadline);
+                expiredCount.incrementAndGet();
+                totalLagNanos.addAndGet(lag);
+                maxLagNanos.accumulateAndGet(lag, Math::max);
+                if (lagMeter != null) {
+                    lagMeter.record(lag, TimeUnit.NANOSECONDS);
+                }
+                try {
+                    executor.execute(timeout.task);
+                } catch (RejectedExecutionException e) {
+                    logger.debug("Bot task rejected", e);
+                }
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    /**
+     * Handle for a scheduled task.
+     */
+    class Timeout {
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        /**
+         * Number of full turns of the wheel left before the deadline. Only
+         * accessed by the timer thread.
+         */
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it has not been run yet. The timeout is
+         * dropped from the wheel when its bucket is next visited.
+         */
+        void cancel() {
+            if (state.compareAndSet(INIT, CANCELLED)) {
+                pending.decrementAndGet();
+            }
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private boolean expire() {
+            return state.compareAndSet(INIT, EXPIRED);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.jensjansson.ce.bot;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.data.generator.DataGenerator;
+import com.jensjansson.ce.views.persons.EditorView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Values the bots type into the forms. The values are generated once, with
+ * {@link DataGenerator#generateData(int, long)}, so an edit only has to pick
+ * an index.
+ */
+class BotValuePools {
+
+    private static final Logger logger = LoggerFactory
+        .getLogger(BotValuePools.class);
+
+    private final String[] firstNames;
+    private final String[] lastNames;
+    private final String[] emails;
+    private final String[] happinessValues;
+
+    /**
+     * Generates the pools. The same seed always gives the same values.
+     *
+     * @param size number of values in each pool, at least 1
+     * @param seed seed for the generator
+     */
+    BotValuePools(int size, long seed) {
+        long start = System.nanoTime();
+        List<Person> persons = DataGenerator.generateData(Math.max(1, size),
+            seed);
+        firstNames = persons.stream().map(Person::getFirstName)
+            .toArray(String[]::new);
+        lastNames = persons.stream().map(Person::getLastName)
+            .toArray(String[]::new);
+        emails = persons.stream().map(Person::getEmail).toArray(String[]::new);
+        happinessValues = EditorView.HAPPINESS_VALUES.toArray(String[]::new);
+        logger.debug("Generated value pools of {} values in {} ms",
+            persons.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    String randomFirstName() {
+        return pick(firstNames);
+    }
+
+    String randomLastName() {
+        return pick(lastNames);
+    }
+
+    String randomEmail() {
+        return pick(emails);
+    }
+
+    String randomHappiness() {
+        return pick(happinessValues);
+    }
+
+    int size() {
+        return firstNames.length;
+    }
+
+    private static String pick(String[] pool) {
+        return pool[ThreadLocalRandom.current().nextInt(pool.length)];
+    }
+}
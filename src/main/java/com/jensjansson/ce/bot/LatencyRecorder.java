@@ -0,0 +1,71 @@
+package com.jensjansson.ce.bot;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Collects operation latencies and computes percentiles over them. Keeps a
+ * fixed size random sample of the latencies, so memory use doesn't depend
+ * on the number of operations.
+ */
+class LatencyRecorder {
+
+    private final long[] samples;
+    private int size;
+    private long count;
+    private long maxNanos;
+
+    /**
+     * @param capacity maximum number of latencies kept for the percentiles
+     */
+    LatencyRecorder(int capacity) {
+        samples = new long[Math.max(1, capacity)];
+    }
+
+    synchronized void record(long nanos) {
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+        if (size < samples.length) {
+            samples[size++] = nanos;
+        } else {
+            // Reservoir sampling keeps every latency with equal chance.
+            long index = ThreadLocalRandom.current().nextLong(count);
+            if (index < samples.length) {
+                samples[(int) index] = nanos;
+            }
+        }
+    }
+
+    /**
+     * Gets the statistics of the latencies recorded since the previous call
+     * and starts over.
+     *
+     * @return the statistics
+     */
+    synchronized Snapshot takeSnapshot() {
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        Snapshot snapshot = new Snapshot(count, percentile(sorted, 0.5),
+            percentile(sorted, 0.9), percentile(sorted, 0.99),
+            maxNanos / 1_000_000.0);
+        size = 0;
+        count = 0;
+        maxNanos = 0;
+        return snapshot;
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    /**
+     * Latency statistics, in milliseconds.
+     */
+    record Snapshot(long count, double p50, double p90, double p99,
+        double max) {
+    }
+}
@@ -0,0 +1,477 @@
+package com.jensjansson.ce.bot;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.jensjansson.ce.collaboration.PersonRefreshChannel;
+import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.data.service.PersonService;
+import com.jensjansson.ce.data.service.PersonWriteBehindQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.collaborationengine.CollaborationBinderUtil;
+import com.vaadin.collaborationengine.CollaborationEngine;
+import com.vaadin.collaborationengine.CollaborationMessage;
+import com.vaadin.collaborationengine.FormManager;
+import com.vaadin.collaborationengine.MessageManager;
+import com.vaadin.collaborationengine.PresenceManager;
+import com.vaadin.collaborationengine.TopicConnection;
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Puts a steady, configurable load on the Collaboration Engine without any
+ * browser, for sizing the nodes. Enabled with {@code loadgen.enabled=true},
+ * see {@link LoadGeneratorProperties}.
+ *
+ * <p>The generator simulates users in the Person topics, the same way the
+ * bots do, following one of the {@link LoadProfile}s. Operations are started
+ * at the target rate by a {@link BotTimer} and run on a pool of worker
+ * threads. The achieved throughput and the latency percentiles are logged
+ * every report interval and at the end of the run.</p>
+ *
+ * <p>The latency of an operation lasts until the engine has applied its
+ * change: the future of the comment, field value or relayed save
+ * notification is completed, or a presence handler of the topic has seen
+ * the user join or leave.</p>
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory
+        .getLogger(LoadGenerator.class);
+
+    private static final String LOAD_PREFIX = "load-"
+        + BotUserGenerator.BOT_ID_PREFIX;
+
+    /**
+     * Interval between starting batches of operations.
+     */
+    private static final long driverIntervalMillis = 10;
+
+    /**
+     * Number of latencies kept for computing the percentiles of one report.
+     */
+    private static final int latencySamples = 10000;
+
+    private static LoadGenerator instance;
+
+    private final PersonService personService;
+    private final PersonWriteBehindQueue writeQueue;
+    private final SerializableSupplier<CollaborationEngine> ceSupplier;
+    private final LoadGeneratorProperties properties;
+    private final LoadProfile profile;
+    private final double operationsPerSecond;
+
+    private final ExecutorService workers;
+    private final BotTimer timer;
+    private final BotIdentityPool users;
+    private final BotValuePools values;
+    private final LatencyRecorder latencies = new LatencyRecorder(
+        latencySamples);
+
+    private List<Integer> ids;
+    private AtomicReferenceArray<TopicConnection> connections;
+    private Registration[] registrations;
+    private final Map<Integer, Person> persons = new ConcurrentHashMap<>();
+    private final Map<String, UserPresence> presences = new ConcurrentHashMap<>();
+    /**
+     * A presence handler in each topic with presence changes, which
+     * completes the changes when it sees them.
+     */
+    private final Map<Integer, PresenceManager> presenceWatchers = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> keystrokes = new ConcurrentHashMap<>();
+
+    private volatile boolean stopped;
+    private long startNanos;
+    private long lastReportNanos;
+    private long started;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalCompleted = new AtomicLong();
+    private final AtomicLong totalFailed = new AtomicLong();
+
+    private LoadGenerator(PersonService personService,
+        PersonWriteBehindQueue writeQueue,
+        SerializableSupplier<CollaborationEngine> ceSupplier,
+        BotProperties botProperties, LoadGeneratorProperties properties) {
+        this.personService = personService;
+        this.writeQueue = writeQueue;
+        this.ceSupplier = ceSupplier;
+        this.properties = properties;
+        this.profile = properties.getProfile();
+        this.operationsPerSecond = properties.getOperationsPerSecond() > 0
+            ? properties.getOperationsPerSecond()
+            : profile.getDefaultOperationsPerSecond();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(
+            Math.max(1, properties.getWorkers()), runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                thread.setName("Load-Worker-" + threadNumber.incrementAndGet());
+                return thread;
+            });
+        this.timer = new BotTimer(driverIntervalMillis, 1024, workers);
+        this.users = new BotIdentityPool(properties.getUsers(), LOAD_PREFIX,
+            botProperties.getMaxAvatarNumber());
+        this.values = new BotValuePools(botProperties.getValuePoolSize(),
+            botProperties.getValuePoolSeed());
+    }
+
+    /**
+     * Called by the {@link com.jensjansson.ce.Application} class on startup
+     * when the load generator is enabled, once the demo data is in the
+     * database.
+     *
+     * @param personService {@link PersonService}
+     * @param writeQueue queue for saving the entities
+     * @param ceSupplier the Collaboration Engine instance, not {@code null}
+     * @param botProperties the bot settings, for the generated values
+     * @param properties the load generator settings
+     */
+    public static void start(PersonService personService,
+        PersonWriteBehindQueue writeQueue,
+        SerializableSupplier<CollaborationEngine> ceSupplier,
+        BotProperties botProperties, LoadGeneratorProperties properties) {
+        if (instance != null) {
+            throw new IllegalStateException(
+                "Only 1 instance should be created");
+        }
+        instance = new LoadGenerator(personService, writeQueue, ceSupplier,
+            botProperties, properties);
+        instance.schedule(instance::begin, 0);
+    }
+
+    /**
+     * Stops generating load. Called when the application is shut down.
+     */
+    public static void shutdown() {
+        if (instance != null) {
+            instance.stop();
+        }
+    }
+
+    /**
+     * Opens one connection to each of the Person topics.
+     */
+    private void connect() {
+        CollaborationEngine ce = ceSupplier.get();
+        connections = new AtomicReferenceArray<>(ids.size());
+        registrations = new Registration[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            int index = i;
+            registrations[i] = ce.openTopicConnection(ce.getSystemContext(),
+                topicId(index), users.get(index), topic -> {
+                    connections.set(index, topic);
+                    return () -> connections.set(index, null);
+                });
+        }
+    }
+
+    private void begin() {
+        ids = personService.findIds(Math.max(1, properties.getTopics()));
+        if (ids.isEmpty()) {
+            logger.warn("No persons in the database, no load generated");
+            return;
+        }
+        connect();
+        logger.info("Generating {} load at {} operations per second over {} topics for {} s",
+            profile, operationsPerSecond, ids.size(),
+            properties.getDurationSeconds());
+        startNanos = System.nanoTime();
+        lastReportNanos = startNanos;
+        drive();
+    }
+
+    /**
+     * Starts the operations due since the previous run, so the rate stays
+     * on target even if a run is late.
+     */
+    private void drive() {
+        long now = System.nanoTime();
+        long elapsed = now - startNanos;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(properties.getDurationSeconds())) {
+            report(now, true);
+            stop();
+            return;
+        }
+        long due = (long) (operationsPerSecond * elapsed / 1e9) - started;
+        // Don't try to catch up for more than a second worth of operations.
+        due = Math.min(due, (long) Math.ceil(operationsPerSecond));
+        for (long i = 0; i < due; i++) {
+            started++;
+            workers.execute(this::runOperation);
+        }
+        if (now - lastReportNanos >= TimeUnit.SECONDS
+            .toNanos(properties.getReportIntervalSeconds())) {
+            report(now, false);
+        }
+        schedule(this::drive, driverIntervalMillis);
+    }
+
+    private void runOperation() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int index = random.nextInt(ids.size());
+        TopicConnection topic = connections.get(index);
+        if (topic == null) {
+            completed(System.nanoTime(),
+                new IllegalStateException("Topic not connected"));
+            return;
+        }
+        int userIndex = random.nextInt(users.size());
+        UserInfo user = users.get(userIndex);
+        long start = System.nanoTime();
+        try {
+            CompletableFuture<?> result = switch (profile) {
+            case PRESENCE_CHURN -> changePresence(index, userIndex);
+            case SAVE_HEAVY -> save(index, topic, user);
+            case CHAT_HEAVY -> comment(topic, user);
+            case TYPING -> type(index, topic, user);
+            };
+            result.whenComplete((value, error) -> completed(start, error));
+        } catch (RuntimeException e) {
+            completed(start, e);
+        }
+    }
+
+    private void completed(long startNanos, Throwable error) {
+        if (error != null) {
+            failed.incrementAndGet();
+            totalFailed.incrementAndGet();
+            logger.trace("Load operation failed", error);
+            return;
+        }
+        latencies.record(System.nanoTime() - startNanos);
+        completed.incrementAndGet();
+        totalCompleted.incrementAndGet();
+    }
+
+    /**
+     * Makes a user join a topic, or leave it if it is already there.
+     */
+    private CompletableFuture<?> changePresence(int index, int userIndex) {
+        watchPresence(index);
+        UserInfo user = users.get(userIndex);
+        UserPresence presence = presences.computeIfAbsent(
+            presenceKey(index, user),
+            key -> new UserPresence(new PresenceManager(
+                ceSupplier.get().getSystemContext(), user, topicId(index),
+                ceSupplier)));
+        return presence.toggle();
+    }
+
+    private void watchPresence(int index) {
+        presenceWatchers.computeIfAbsent(index, key -> {
+            PresenceManager watcher = new PresenceManager(
+                ceSupplier.get().getSystemContext(),
+                new UserInfo(LOAD_PREFIX + "watcher"), topicId(index),
+                ceSupplier);
+            watcher.setPresenceHandler(context -> {
+                UserInfo user = context.getUser();
+                observePresence(index, user, true);
+                return () -> observePresence(index, user, false);
+            });
+            return watcher;
+        });
+    }
+
+    private void observePresence(int index, UserInfo user, boolean present) {
+        UserPresence presence = presences.get(presenceKey(index, user));
+        if (presence != null) {
+            presence.observed(present);
+        }
+    }
+
+    private static String presenceKey(int index, UserInfo user) {
+        return index + "/" + user.getId();
+    }
+
+    /**
+     * Saves the entity of a topic like the edit bots do.
+     */
+    private CompletableFuture<?> save(int index, TopicConnection topic,
+        UserInfo user) {
+        Integer id = ids.get(index);
+        Person person = persons.computeIfAbsent(id,
+            key -> personService.get(key).orElseThrow());
+        synchronized (person) {
+            CompletableFuture<?> saved = BotSaver.save(ceSupplier.get(),
+                topic, person, writeQueue, user);
+            PersonRefreshChannel.getInstance().publish(person);
+            return saved;
+        }
+    }
+
+    /**
+     * Posts a comment to a topic.
+     */
+    private CompletableFuture<?> comment(TopicConnection topic,
+        UserInfo user) {
+        CollaborationMessage message = new CollaborationMessage(user,
+            "Load test comment about " + values.randomFirstName(),
+            Instant.now());
+        // The list the message lists of the editors show.
+        return topic.getNamedList(MessageManager.class.getName())
+            .insertLast(message).getCompletableFuture();
+    }
+
+    /**
+     * Types the next character of a first name into the form of a topic.
+     * The user focuses the field before the first keystroke and leaves it
+     * after the last one.
+     */
+    private CompletableFuture<?> type(int index, TopicConnection topic,
+        UserInfo user) {
+        String name = values.randomFirstName();
+        int keystroke = keystrokes
+            .computeIfAbsent(index, key -> new AtomicInteger())
+            .getAndIncrement();
+        int length = Math.min(name.length(), keystroke % 8 + 1);
+        if (keystroke % 8 == 0) {
+            CollaborationBinderUtil.addEditor(topic, "firstName", user);
+        }
+        // The same as CollaborationBinderUtil.setFieldValue, which doesn't
+        // return the future of the change.
+        CompletableFuture<?> typed = topic
+            .getNamedMap(FormManager.class.getName())
+            .put("firstName", name.substring(0, length));
+        if (keystroke % 8 == 7) {
+            CollaborationBinderUtil.removeEditor(topic, "firstName", user);
+        }
+        return typed;
+    }
+
+    private void report(long now, boolean last) {
+        double seconds = (now - lastReportNanos) / 1e9;
+        lastReportNanos = now;
+        LatencyRecorder.Snapshot snapshot = latencies.takeSnapshot();
+        logger.info("{} {}: {} ops/s (target {}), latency ms p50 {} p90 {} p99 {} max {}, {} failed, {} in flight",
+            last ? "Finished" : "Running", profile,
+            String.format("%.1f", completed.getAndSet(0) / seconds),
+            operationsPerSecond,
+            String.format("%.2f", snapshot.p50()),
+            String.format("%.2f", snapshot.p90()),
+            String.format("%.2f", snapshot.p99()),
+            String.format("%.2f", snapshot.max()), failed.getAndSet(0),
+            started - totalCompleted.get() - totalFailed.get());
+    }
+
+    private synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        timer.stop();
+        workers.shutdown();
+        presenceWatchers.values().forEach(PresenceManager::close);
+        presences.values().forEach(presence -> presence.manager.close());
+        if (registrations != null) {
+            for (Registration registration : registrations) {
+                registration.remove();
+            }
+        }
+    }
+
+    private void schedule(Runnable task, long delayMillis) {
+        timer.schedule(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warn("Load generator threw exception", e);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private String topicId(int index) {
+        return String.format("person/%d", ids.get(index));
+    }
+
+    /**
+     * The presence of a user in a topic. The changes are made one at a
+     * time: a change waits for the previous one to be seen by the watcher
+     * of the topic.
+     */
+    private class UserPresence {
+        private final PresenceManager manager;
+        /**
+         * The presence after the latest change. Guarded by this.
+         */
+        private boolean present;
+        /**
+         * The change waiting to be seen, if any. Guarded by this.
+         */
+        private CompletableFuture<Void> unseen;
+        /**
+         * The latest change requested. Guarded by this.
+         */
+        private CompletableFuture<Void> latest = CompletableFuture
+            .completedFuture(null);
+
+        UserPresence(PresenceManager manager) {
+            this.manager = manager;
+        }
+
+        CompletableFuture<Void> toggle() {
+            CompletableFuture<Void> change = new CompletableFuture<>();
+            CompletableFuture<Void> previous;
+            synchronized (this) {
+                previous = latest;
+                latest = change;
+            }
+            if (previous.isDone()) {
+                apply(change);
+            } else {
+                // Not in the thread that saw the previous change, which is
+                // the presence handler of the watcher.
+                previous.whenCompleteAsync((value, error) -> apply(change),
+                    task -> {
+                        try {
+                            workers.execute(task);
+                        } catch (RejectedExecutionException e) {
+                            // Stopped meanwhile.
+                        }
+                    });
+            }
+            return change;
+        }
+
+        private void apply(CompletableFuture<Void> change) {
+            if (stopped) {
+                return;
+            }
+            boolean value;
+            synchronized (this) {
+                present = !present;
+                value = present;
+                unseen = change;
+            }
+            // Not holding this, as the watcher may be called while the
+            // engine holds the topic.
+            manager.markAsPresent(value);
+        }
+
+        void observed(boolean value) {
+            CompletableFuture<Void> seen;
+            synchronized (this) {
+                if (unseen == null || value != present) {
+                    return;
+                }
+                seen = unseen;
+                unseen = null;
+            }
+            seen.complete(null);
+        }
+    }
+}
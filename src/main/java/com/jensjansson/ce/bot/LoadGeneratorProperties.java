@@ -0,0 +1,115 @@
+package com.jensjansson.ce.bot;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Settings of the {@link LoadGenerator}, configured with the
+ * {@code loadgen.*} application properties.
+ */
+@ConfigurationProperties(prefix = "loadgen")
+public class LoadGeneratorProperties {
+
+    /**
+     * Whether the load generator runs when the application starts.
+     */
+    private boolean enabled = false;
+
+    /**
+     * Kind of load to generate.
+     */
+    private LoadProfile profile = LoadProfile.PRESENCE_CHURN;
+
+    /**
+     * Target operations per second. Zero uses the default of the profile.
+     */
+    private double operationsPerSecond = 0;
+
+    /**
+     * How long the load is generated.
+     */
+    private long durationSeconds = 60;
+
+    /**
+     * Number of Person topics the load is spread over.
+     */
+    private int topics = 100;
+
+    /**
+     * Number of simulated users.
+     */
+    private int users = 50;
+
+    /**
+     * Number of threads running the operations.
+     */
+    private int workers = 4;
+
+    /**
+     * Interval between the throughput and latency reports in the log.
+     */
+    private long reportIntervalSeconds = 10;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public LoadProfile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(LoadProfile profile) {
+        this.profile = profile;
+    }
+
+    public double getOperationsPerSecond() {
+        return operationsPerSecond;
+    }
+
+    public void setOperationsPerSecond(double operationsPerSecond) {
+        this.operationsPerSecond = operationsPerSecond;
+    }
+
+    public long getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public int getTopics() {
+        return topics;
+    }
+
+    public void setTopics(int topics) {
+        this.topics = topics;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public void setUsers(int users) {
+        this.users = users;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public long getReportIntervalSeconds() {
+        return reportIntervalSeconds;
+    }
+
+    public void setReportIntervalSeconds(long reportIntervalSeconds) {
+        this.reportIntervalSeconds = reportIntervalSeconds;
+    }
+}
@@ -0,0 +1,45 @@
+package com.jensjansson.ce.bot;
+
+/**
+ * Kinds of load the {@link LoadGenerator} puts on the Collaboration Engine.
+ */
+public enum LoadProfile {
+
+    /**
+     * Load users keep joining and leaving the Person topics with a
+     * {@link com.vaadin.collaborationengine.PresenceManager}.
+     */
+    PRESENCE_CHURN(200),
+
+    /**
+     * Load users read the form values of the Person topics, save the
+     * entities and notify the topics and the grids about it.
+     */
+    SAVE_HEAVY(50),
+
+    /**
+     * Load users post comments to the
+     * {@link com.vaadin.collaborationengine.CollaborationMessageList} of the
+     * Person topics.
+     */
+    CHAT_HEAVY(100),
+
+    /**
+     * Load users type names into the forms one keystroke at a time with
+     * {@link com.vaadin.collaborationengine.CollaborationBinderUtil#setFieldValue}.
+     */
+    TYPING(500);
+
+    private final double defaultOperationsPerSecond;
+
+    LoadProfile(double defaultOperationsPerSecond) {
+        this.defaultOperationsPerSecond = defaultOperationsPerSecond;
+    }
+
+    /**
+     * @return target rate of the profile when none is configured
+     */
+    public double getDefaultOperationsPerSecond() {
+        return defaultOperationsPerSecond;
+    }
+}
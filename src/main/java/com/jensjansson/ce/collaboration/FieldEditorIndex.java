@@ -0,0 +1,102 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.vaadin.collaborationengine.CollaborationBinder;
+import com.vaadin.collaborationengine.FormManager;
+import com.vaadin.collaborationengine.ListChangeEvent;
+import com.vaadin.collaborationengine.ListKey;
+import com.vaadin.collaborationengine.TopicConnection;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Number of users focused on each field of a {@link CollaborationBinder}
+ * form in a topic.
+ *
+ * <p>The counts are kept up to date from the changes of the binder's list of
+ * focused editors, so a lookup costs O(1) instead of reading and filtering
+ * the whole list. The index stops updating when the topic connection is
+ * deactivated or {@link #remove()} is called.</p>
+ */
+public class FieldEditorIndex {
+
+    /**
+     * The binder keeps its state in collections named after its form
+     * manager.
+     */
+    private static final String LIST_NAME = FormManager.class.getName();
+    private static final String PROPERTY_NAME = "propertyName";
+
+    /**
+     * Property name of each item of the editor list.
+     */
+    private final Map<ListKey, String> propertyNames = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+    private final Registration registration;
+
+    private FieldEditorIndex(TopicConnection topic) {
+        registration = topic.getNamedList(LIST_NAME)
+                .subscribe(this::onEditorsChanged);
+    }
+
+    /**
+     * Starts indexing the focused editors of a topic. Must be called while
+     * the topic connection is active.
+     *
+     * @param topic the topic connection, not {@code null}
+     * @return the index
+     */
+    public static FieldEditorIndex subscribe(TopicConnection topic) {
+        return new FieldEditorIndex(topic);
+    }
+
+    /**
+     * @param propertyName name of the bound property
+     * @return number of users focused on the field
+     */
+    public int getEditorCount(String propertyName) {
+        AtomicInteger count = counts.get(propertyName);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return number of focused users by property name, only including
+     * fields with at least one focused user
+     */
+    public Map<String, Integer> getEditorCounts() {
+        return Collections.unmodifiableMap(counts.entrySet().stream()
+                .filter(entry -> entry.getValue().get() > 0)
+                .collect(Collectors.toMap(Map.Entry::getKey,
+                        entry -> entry.getValue().get())));
+    }
+
+    /**
+     * Stops updating the index.
+     */
+    public void remove() {
+        registration.remove();
+    }
+
+    private void onEditorsChanged(ListChangeEvent event) {
+        ListKey key = event.getKey();
+        String previous = propertyNames.remove(key);
+        if (previous != null) {
+            counts.get(previous).decrementAndGet();
+        }
+        ObjectNode editor = event.getValue(ObjectNode.class);
+        JsonNode propertyName = editor != null ? editor.get(PROPERTY_NAME)
+                : null;
+        if (propertyName != null) {
+            propertyNames.put(key, propertyName.asText());
+            counts.computeIfAbsent(propertyName.asText(),
+                    name -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.jensjansson.ce.collaboration;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stores the events as they are, in UTF-8.
+ */
+class JsonPayloadCodec implements TopicPayloadCodec {
+
+    @Override
+    public byte getId() {
+        return 0;
+    }
+
+    @Override
+    public byte[] encode(String event) {
+        return event.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String decode(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,117 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.jensjansson.ce.data.entity.Person;
+
+/**
+ * The fields of a saved {@link Person} that differ from the previously
+ * published state, as published by the {@link PersonRefreshChannel}.
+ *
+ * <p>The version orders the changes of an entity, also the ones published
+ * by other nodes, so a receiver can skip a change older than the state it
+ * already has.</p>
+ */
+public class PersonChange {
+
+    private static final Map<String, Function<Person, String>> getters = new LinkedHashMap<>();
+    private static final Map<String, BiConsumer<Person, String>> setters = new LinkedHashMap<>();
+
+    static {
+        property("firstName", Person::getFirstName, Person::setFirstName);
+        property("lastName", Person::getLastName, Person::setLastName);
+        property("avatar", Person::getAvatar, Person::setAvatar);
+        property("email", Person::getEmail, Person::setEmail);
+        property("phoneNumber", Person::getPhoneNumber,
+                Person::setPhoneNumber);
+        property("title", Person::getTitle, Person::setTitle);
+        property("department", Person::getDepartment,
+                Person::setDepartment);
+        property("team", Person::getTeam, Person::setTeam);
+        property("happiness", Person::getHappiness, Person::setHappiness);
+    }
+
+    private Integer id;
+    private long version;
+    private Map<String, String> fields = new LinkedHashMap<>();
+
+    public PersonChange() {
+    }
+
+    private static void property(String name, Function<Person, String> getter,
+            BiConsumer<Person, String> setter) {
+        getters.put(name, getter);
+        setters.put(name, setter);
+    }
+
+    /**
+     * @param before the previously published state, or {@code null} if it
+     * is not known, in which case all the fields are included
+     * @param after the saved state
+     * @param version the version of the saved state
+     * @return the change from one state to the other
+     */
+    static PersonChange between(Person before, Person after, long version) {
+        PersonChange change = new PersonChange();
+        change.id = after.getId();
+        change.version = version;
+        getters.forEach((name, getter) -> {
+            String value = getter.apply(after);
+            if (before == null
+                    || !Objects.equals(getter.apply(before), value)) {
+                change.fields.put(name, value);
+            }
+        });
+        return change;
+    }
+
+    /**
+     * Sets the changed fields of an entity.
+     *
+     * @param person the entity to update
+     */
+    void applyTo(Person person) {
+        fields.forEach((name, value) -> {
+            BiConsumer<Person, String> setter = setters.get(name);
+            if (setter != null) {
+                setter.accept(person, value);
+            }
+        });
+    }
+
+    /**
+     * @return {@code true} if the change has all of the fields, so it
+     * doesn't need a previous state to be applied to
+     */
+    boolean isComplete() {
+        return fields.keySet().containsAll(setters.keySet());
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    public void setFields(Map<String, String> fields) {
+        this.fields = fields;
+    }
+}
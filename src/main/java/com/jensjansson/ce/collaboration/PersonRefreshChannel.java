@@ -0,0 +1,337 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.data.service.PersonService;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.collaborationengine.CollaborationEngine;
+import com.vaadin.collaborationengine.CollaborationMap;
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.function.SerializableConsumer;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Tells the grids that {@link Person} entities have been saved and should
+ * be refreshed.
+ *
+ * <p>Saves are collected for a short window. At the end of each window the
+ * changes of the saved entities are published as one batch on the
+ * {@code refreshGrid} topic, so every connected UI gets one message per
+ * window no matter how many saves there were. Each change has the id, a
+ * version and only the fields that differ from the previously published
+ * state, see {@link PersonChange}. The batch replaces the previous one, so
+ * the topic only keeps the latest window.</p>
+ *
+ * <p>Every node keeps a bounded cache of the recently changed entities,
+ * which the changes are applied to as they arrive, and updates the read
+ * model of the {@link PersonService} with them, so the changes published by
+ * the other nodes are shown too. A change of an entity not in the cache is
+ * applied to the entity read from the service. A UI gets the whole batch of
+ * changed entities in a single callback.</p>
+ *
+ * <p>The published batches are recorded in the {@code persons.refresh.batch}
+ * meter, with the number of entities in each, and the changed fields in the
+ * {@code persons.refresh.fields} meter.</p>
+ */
+public class PersonRefreshChannel {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(PersonRefreshChannel.class);
+
+    private static final String TOPIC_ID = "refreshGrid";
+    private static final String MAP_NAME = "refreshGrid";
+    private static final String BATCH_KEY = "batch";
+    private static final TypeReference<List<PersonChange>> CHANGE_LIST_TYPE_REF = new TypeReference<List<PersonChange>>() {
+    };
+
+    /**
+     * Number of recently changed entities kept for applying the changes to.
+     */
+    private static final int recentCapacity = 1000;
+
+    private static PersonRefreshChannel instance;
+
+    private final SerializableSupplier<CollaborationEngine> ceSupplier;
+    private final PersonService personService;
+    private final ScheduledExecutorService publisher;
+
+    /**
+     * Entities saved during the current window, by id. Guarded by itself.
+     */
+    private final Map<Integer, Person> pending = new LinkedHashMap<>();
+
+    /**
+     * Recently changed entities, by id, least recently changed first.
+     * Guarded by itself.
+     */
+    private final Map<Integer, Row> recent = new LinkedHashMap<>(16, 0.75f,
+            false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Row> eldest) {
+            return size() > recentCapacity;
+        }
+    };
+
+    /**
+     * The latest version published or received. The next version is later
+     * than it and than the current time, so the versions of the changes
+     * published by different nodes follow each other.
+     */
+    private final AtomicLong latestVersion = new AtomicLong();
+
+    private final DistributionSummary batches;
+    private final DistributionSummary fields;
+
+    private volatile CollaborationMap refreshGridMap;
+
+    private PersonRefreshChannel(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            PersonService personService, long windowMillis,
+            MeterRegistry meterRegistry) {
+        this.ceSupplier = ceSupplier;
+        this.personService = personService;
+        this.batches = DistributionSummary.builder("persons.refresh.batch")
+                .description("Batches of saved persons published to the grids")
+                .baseUnit("persons").register(meterRegistry);
+        this.fields = DistributionSummary.builder("persons.refresh.fields")
+                .description("Changed fields of each published person")
+                .baseUnit("fields").register(meterRegistry);
+        this.publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("Refresh-Publisher");
+            return thread;
+        });
+        CollaborationEngine ce = ceSupplier.get();
+        UserInfo systemUser = new UserInfo("refresh-channel");
+        ce.openTopicConnection(ce.getSystemContext(), TOPIC_ID, systemUser,
+                topicConnection -> {
+                    refreshGridMap = topicConnection.getNamedMap(MAP_NAME);
+                    // Keeps the read model up to date also when no UI of
+                    // this node is subscribed.
+                    Registration registration = refreshGridMap
+                            .subscribe(event -> apply(
+                                    event.getValue(CHANGE_LIST_TYPE_REF)));
+                    return () -> {
+                        registration.remove();
+                        refreshGridMap = null;
+                    };
+                });
+        publisher.scheduleWithFixedDelay(this::publishPending, windowMillis,
+                Math.max(1, windowMillis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the {@link com.jensjansson.ce.Application} class on startup
+     * to create the channel.
+     *
+     * @param ceSupplier the Collaboration Engine instance, not {@code null}
+     * @param personService service whose read model is kept up to date with
+     * the changes, and which the changed entities are read from when they
+     * are not cached
+     * @param windowMillis length of the window in which saves are collected
+     * @param meterRegistry registry for the metrics of the channel
+     */
+    public static void createInstance(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            PersonService personService, long windowMillis,
+            MeterRegistry meterRegistry) {
+        if (instance != null) {
+            throw new IllegalStateException(
+                    "Only 1 instance should be created");
+        }
+        instance = new PersonRefreshChannel(ceSupplier, personService,
+                windowMillis, meterRegistry);
+    }
+
+    public static PersonRefreshChannel getInstance() {
+        return Objects.requireNonNull(instance,
+                "The channel has not been created");
+    }
+
+    /**
+     * Stops publishing. Called when the application is shut down.
+     */
+    public static void shutdown() {
+        if (instance != null) {
+            instance.publisher.shutdownNow();
+        }
+    }
+
+    /**
+     * Marks an entity as saved. The changes from the previously published
+     * state are published at the end of the current window.
+     *
+     * @param person the saved entity, with an id
+     */
+    public void publish(Person person) {
+        Person copy = new Person(person);
+        synchronized (pending) {
+            pending.put(copy.getId(), copy);
+        }
+    }
+
+    /**
+     * Subscribes to the saved entities. The listener is called with all the
+     * entities of a window at once, while the UI of the component is locked.
+     * The subscription ends when the component is detached.
+     *
+     * @param component the component the subscription belongs to
+     * @param user the user of the UI
+     * @param listener called with the saved entities
+     * @return registration for ending the subscription
+     */
+    public Registration subscribe(Component component, UserInfo user,
+            SerializableConsumer<List<Person>> listener) {
+        return ceSupplier.get().openTopicConnection(component, TOPIC_ID, user,
+                topicConnection -> topicConnection.getNamedMap(MAP_NAME)
+                        .subscribe(event -> {
+                            List<Person> persons = apply(
+                                    event.getValue(CHANGE_LIST_TYPE_REF));
+                            if (!persons.isEmpty()) {
+                                listener.accept(persons);
+                            }
+                        }));
+    }
+
+    /**
+     * Applies changes to the cached entities, unless a later version has
+     * already been applied. Each change is applied once on a node, by
+     * whichever subscription gets it first.
+     *
+     * @param changes the changes of a batch, or {@code null}
+     * @return copies of the changed entities
+     */
+    private List<Person> apply(List<PersonChange> changes) {
+        if (changes == null) {
+            return List.of();
+        }
+        List<Person> persons = new ArrayList<>(changes.size());
+        List<Person> applied = new ArrayList<>();
+        for (PersonChange change : changes) {
+            latestVersion.accumulateAndGet(change.getVersion(), Math::max);
+            Person person;
+            synchronized (recent) {
+                Row row = recent.get(change.getId());
+                if (row != null && row.version >= change.getVersion()) {
+                    persons.add(new Person(row.person));
+                    continue;
+                }
+                person = row != null ? row.person : null;
+            }
+            if (person == null) {
+                person = base(change);
+                if (person == null) {
+                    continue;
+                }
+            }
+            person = new Person(person);
+            change.applyTo(person);
+            synchronized (recent) {
+                Row row = recent.get(change.getId());
+                if (row != null && row.version >= change.getVersion()) {
+                    // Applied while the entity was read.
+                    persons.add(new Person(row.person));
+                    continue;
+                }
+                recent.remove(change.getId());
+                recent.put(change.getId(),
+                        new Row(person, change.getVersion()));
+            }
+            applied.add(person);
+            persons.add(new Person(person));
+        }
+        applied.forEach(personService::updateReadModel);
+        return persons;
+    }
+
+    /**
+     * @return the entity a change of an entity not in the cache is applied
+     * to, or {@code null} if it doesn't exist
+     */
+    private Person base(PersonChange change) {
+        if (change.isComplete()) {
+            Person person = new Person();
+            person.setId(change.getId());
+            return person;
+        }
+        return personService.get(change.getId()).orElse(null);
+    }
+
+    private long nextVersion() {
+        long now = System.currentTimeMillis();
+        return latestVersion
+                .updateAndGet(latest -> Math.max(latest + 1, now));
+    }
+
+    private void publishPending() {
+        CollaborationMap map = refreshGridMap;
+        if (map == null) {
+            return;
+        }
+        List<Person> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        List<PersonChange> changes = new ArrayList<>(batch.size());
+        synchronized (recent) {
+            for (Person person : batch) {
+                Row row = recent.remove(person.getId());
+                PersonChange change = PersonChange.between(
+                        row != null ? row.person : null, person,
+                        nextVersion());
+                // Re-inserting moves the entity to the end of the eviction
+                // order.
+                recent.put(person.getId(),
+                        new Row(person, change.getVersion()));
+                if (row == null || !change.getFields().isEmpty()) {
+                    changes.add(change);
+                }
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        try {
+            map.put(BATCH_KEY, changes);
+            batches.record(changes.size());
+            changes.forEach(change -> fields.record(change.getFields().size()));
+        } catch (RuntimeException e) {
+            logger.warn("Failed to publish {} refreshed persons",
+                    changes.size(), e);
+        }
+    }
+
+    /**
+     * A cached entity and the version of the change that was applied last.
+     */
+    private static class Row {
+        private final Person person;
+        private final long version;
+
+        Row(Person person, long version) {
+            this.person = person;
+            this.version = version;
+        }
+    }
+}
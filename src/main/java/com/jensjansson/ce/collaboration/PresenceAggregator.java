@@ -0,0 +1,372 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.collaborationengine.CollaborationEngine;
+import com.vaadin.collaborationengine.PresenceManager;
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.function.SerializableConsumer;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Tracks the users present in topics for all the UIs, so a topic has one
+ * {@link PresenceManager} no matter how many UIs show its users.
+ *
+ * <p>The presence manager of a topic is opened with the system connection
+ * context when the first subscription to the topic is made, and closed a
+ * while after the last one has ended, so rows scrolled out and back in don't
+ * reconnect. Changes are delivered once per UI round trip: every change
+ * marks the subscriptions as changed, and a single {@link UI#access} per UI
+ * hands the current users to all of them. The color index of each user is
+ * assigned once, when the user arrives.</p>
+ *
+ * <p>The number of topics with a presence manager is measured by the
+ * {@code presence.topics} gauge.</p>
+ */
+public class PresenceAggregator {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(PresenceAggregator.class);
+
+    /**
+     * How long a topic stays connected after its last subscription has
+     * ended.
+     */
+    private static final long closeDelayMillis = 5000;
+
+    private static PresenceAggregator instance;
+
+    private final SerializableSupplier<CollaborationEngine> ceSupplier;
+    private final UserInfo systemUser = new UserInfo("presence-aggregator");
+    private final ScheduledExecutorService closer;
+
+    /**
+     * Topics with subscribers or waiting to be closed, by id. Guarded by
+     * itself.
+     */
+    private final Map<String, TopicPresence> topics = new HashMap<>();
+
+    /**
+     * Pending changes of each UI. The UIs are weakly referenced, so the
+     * entries go away with the UIs. Guarded by itself.
+     */
+    private final Map<UI, UiChanges> changes = new WeakHashMap<>();
+
+    private PresenceAggregator(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            MeterRegistry meterRegistry) {
+        this.ceSupplier = ceSupplier;
+        this.closer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("Presence-Closer");
+            return thread;
+        });
+        Gauge.builder("presence.topics", this,
+                PresenceAggregator::getTopicCount)
+                .description("Topics with a shared presence manager")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Called by the {@link com.jensjansson.ce.Application} class on startup
+     * to create the aggregator.
+     *
+     * @param ceSupplier the Collaboration Engine instance, not {@code null}
+     * @param meterRegistry registry for the metrics of the aggregator
+     */
+    public static void createInstance(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            MeterRegistry meterRegistry) {
+        if (instance != null) {
+            throw new IllegalStateException(
+                    "Only 1 instance should be created");
+        }
+        instance = new PresenceAggregator(ceSupplier, meterRegistry);
+    }
+
+    public static PresenceAggregator getInstance() {
+        return Objects.requireNonNull(instance,
+                "The aggregator has not been created");
+    }
+
+    /**
+     * Closes the presence managers. Called when the application is shut
+     * down.
+     */
+    public static void shutdown() {
+        if (instance != null) {
+            instance.closer.shutdownNow();
+            synchronized (instance.topics) {
+                instance.topics.values().forEach(TopicPresence::close);
+                instance.topics.clear();
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the users present in a topic. The listener is called
+     * with the current users while the UI is locked, once right after
+     * subscribing and then at most once per UI round trip when the users
+     * change.
+     *
+     * @param ui the UI the subscription belongs to
+     * @param topicId the topic
+     * @param listener called with the present users, in the order they
+     * arrived
+     * @return registration for ending the subscription
+     */
+    public Registration subscribe(UI ui, String topicId,
+            SerializableConsumer<List<PresentUser>> listener) {
+        Subscriber subscriber = new Subscriber(topicId, listener);
+        start(subscriber, ui);
+        return () -> stop(subscriber);
+    }
+
+    private int getTopicCount() {
+        synchronized (topics) {
+            return topics.size();
+        }
+    }
+
+    private void start(Subscriber subscriber, UI ui) {
+        TopicPresence topic;
+        synchronized (topics) {
+            if (subscriber.topic != null) {
+                return;
+            }
+            topic = topics.computeIfAbsent(subscriber.topicId,
+                    TopicPresence::new);
+            topic.cancelClose();
+            topic.subscribers.add(subscriber);
+            subscriber.ui = ui;
+            subscriber.topic = topic;
+        }
+        markChanged(subscriber);
+    }
+
+    private void stop(Subscriber subscriber) {
+        synchronized (topics) {
+            TopicPresence topic = subscriber.topic;
+            if (topic == null) {
+                return;
+            }
+            subscriber.topic = null;
+            subscriber.ui = null;
+            topic.subscribers.remove(subscriber);
+            if (topic.subscribers.isEmpty()) {
+                topic.scheduleClose();
+            }
+        }
+    }
+
+    private void markChanged(Subscriber subscriber) {
+        UI ui = subscriber.ui;
+        if (ui == null) {
+            return;
+        }
+        UiChanges uiChanges;
+        synchronized (changes) {
+            uiChanges = changes.computeIfAbsent(ui, key -> new UiChanges());
+        }
+        if (uiChanges.add(subscriber)) {
+            try {
+                ui.access(uiChanges::deliver);
+            } catch (UIDetachedException e) {
+                // The UI is gone, its subscriptions end with it.
+                uiChanges.clear();
+            }
+        }
+    }
+
+    /**
+     * The present users of a topic and the subscriptions to them.
+     */
+    private class TopicPresence {
+        private final String topicId;
+        private final PresenceManager presenceManager;
+        private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+        /**
+         * Guarded by itself.
+         */
+        private final List<PresentUser> users = new ArrayList<>();
+        /**
+         * Guarded by the topics map.
+         */
+        private ScheduledFuture<?> closing;
+
+        TopicPresence(String topicId) {
+            this.topicId = topicId;
+            CollaborationEngine ce = ceSupplier.get();
+            presenceManager = new PresenceManager(ce.getSystemContext(),
+                    systemUser, topicId, ceSupplier);
+            presenceManager.markAsPresent(false);
+            presenceManager.setPresenceHandler(context -> {
+                PresentUser user = new PresentUser(context.getUser(),
+                        ce.getUserColorIndex(context.getUser()));
+                synchronized (users) {
+                    users.add(user);
+                }
+                changed();
+                return () -> {
+                    synchronized (users) {
+                        users.remove(user);
+                    }
+                    changed();
+                };
+            });
+        }
+
+        List<PresentUser> getUsers() {
+            synchronized (users) {
+                return new ArrayList<>(users);
+            }
+        }
+
+        private void changed() {
+            subscribers.forEach(PresenceAggregator.this::markChanged);
+        }
+
+        void scheduleClose() {
+            closing = closer.schedule(() -> {
+                synchronized (topics) {
+                    if (subscribers.isEmpty()
+                            && topics.remove(topicId, this)) {
+                        close();
+                    }
+                }
+            }, closeDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void cancelClose() {
+            if (closing != null) {
+                closing.cancel(false);
+                closing = null;
+            }
+        }
+
+        void close() {
+            try {
+                presenceManager.close();
+            } catch (RuntimeException e) {
+                logger.debug("Failed to close the presence of {}", topicId, e);
+            }
+        }
+    }
+
+    /**
+     * A user present in a topic, with the color index of the user.
+     */
+    public static final class PresentUser {
+        private final UserInfo user;
+        private final int colorIndex;
+
+        public PresentUser(UserInfo user, int colorIndex) {
+            this.user = user;
+            this.colorIndex = colorIndex;
+        }
+
+        public UserInfo getUser() {
+            return user;
+        }
+
+        public int getColorIndex() {
+            return colorIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PresentUser)) {
+                return false;
+            }
+            PresentUser other = (PresentUser) obj;
+            return colorIndex == other.colorIndex
+                    && Objects.equals(user.getId(), other.user.getId());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(user.getId(), colorIndex);
+        }
+    }
+
+    /**
+     * A subscription to the users of a topic.
+     */
+    private static class Subscriber {
+        private final String topicId;
+        private final SerializableConsumer<List<PresentUser>> listener;
+        /**
+         * Set while subscribed, guarded by the topics map.
+         */
+        private volatile UI ui;
+        private volatile TopicPresence topic;
+
+        Subscriber(String topicId,
+                SerializableConsumer<List<PresentUser>> listener) {
+            this.topicId = topicId;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The subscribers of one UI that have changes to deliver.
+     */
+    private static class UiChanges {
+        private final Set<Subscriber> changed = new LinkedHashSet<>();
+
+        /**
+         * @return {@code true} if this is the first change since the last
+         * delivery, so a delivery should be scheduled
+         */
+        synchronized boolean add(Subscriber subscriber) {
+            boolean first = changed.isEmpty();
+            changed.add(subscriber);
+            return first;
+        }
+
+        synchronized void clear() {
+            changed.clear();
+        }
+
+        /**
+         * Hands the current users to the changed subscribers. Called with
+         * the UI locked.
+         */
+        void deliver() {
+            List<Subscriber> delivered;
+            synchronized (this) {
+                delivered = new ArrayList<>(changed);
+                changed.clear();
+            }
+            for (Subscriber subscriber : delivered) {
+                TopicPresence topic = subscriber.topic;
+                if (topic != null) {
+                    subscriber.listener.accept(
+                            Collections.unmodifiableList(topic.getUsers()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,977 @@
+package com.jensjansson.ce.collaboration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.collaborationengine.Backend;
+import com.vaadin.collaborationengine.MembershipEvent;
+import com.vaadin.collaborationengine.MembershipEvent.MembershipEventType;
+import com.vaadin.collaborationengine.MembershipListener;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * A Collaboration Engine {@link Backend} that keeps the topics in a
+ * directory, so they survive restarts, and shares them with the other nodes
+ * using the same directory, for example several instances of the
+ * application on one machine.
+ *
+ * <p>Each event log is a file of records appended under an exclusive file
+ * lock, so every node reads the events of a log in the same order. The
+ * nodes follow the files they have subscribed to, woken up by the file
+ * system and also polled at a fixed interval. Snapshots are files replaced
+ * atomically, with the expected id checked under a lock. A topic opened
+ * after a restart loads its latest snapshot and replays the events after
+ * it.</p>
+ *
+ * <p>When the engine truncates a log after a new snapshot, the events the
+ * previous snapshot already contains are dropped: the rest are copied to a
+ * new generation of the log file, which the writers and readers move to
+ * when they reach the end of the current one. The generation before the
+ * current one is removed, so a log is at most two files.</p>
+ *
+ * <p>The events are stored with a {@link TopicPayloadCodec}, named in the
+ * header of each log file, so the nodes can use different codecs and a log
+ * written with another codec is still read. The snapshots are kept as the
+ * JSON text the engine makes, as they are read once per topic.</p>
+ *
+ * <p>Every node touches a file in the {@code members} directory once a
+ * second. A node that hasn't done so for a few seconds, or that has
+ * removed its file when shutting down, has left. The nodes named in the
+ * snapshots and logs that are not alive, like the nodes of a previous run,
+ * are reported as left once a topic has caught up with its log, so that
+ * the topic gets a new leader and their entries are removed.</p>
+ */
+public class SharedDirectoryBackend extends Backend {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(SharedDirectoryBackend.class);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * How often the node tells the others that it is still there.
+     */
+    private static final long heartbeatMillis = 1000;
+
+    /**
+     * How long a node can be silent before the others consider it gone.
+     */
+    private static final long memberTimeoutMillis = 5000;
+
+    /**
+     * How long the file of a node that did not shut down cleanly is kept.
+     */
+    private static final long memberRetentionMillis = 60000;
+
+    /**
+     * Size of the record header: the event id and the length of the event.
+     */
+    private static final int headerSize = 2 * Long.BYTES + Integer.BYTES;
+
+    /**
+     * Size of the log file header: the position of the first record in the
+     * whole log, counting the records dropped with the earlier generations,
+     * and the id of the codec of the events.
+     */
+    private static final int fileHeaderSize = Long.BYTES + 1;
+
+    /**
+     * File locks are held by the whole process, so the nodes in the same
+     * process also take turns with these, by file.
+     */
+    private static final Map<Path, Object> processLocks = new ConcurrentHashMap<>();
+
+    private final UUID nodeId = UUID.randomUUID();
+    private final Path logs;
+    private final Path snapshots;
+    private final Path members;
+    private final Path memberFile;
+    private final long pollMillis;
+    private final TopicPayloadCodec codec;
+
+    private final Map<String, FileEventLog> eventLogs = new ConcurrentHashMap<>();
+    private final List<MembershipListener> membershipListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Nodes known to be alive, including this one. Guarded by itself.
+     */
+    private final Set<UUID> liveMembers = new HashSet<>();
+    /**
+     * Nodes named in the snapshots and events read, which are reported as
+     * left when they are not alive.
+     */
+    private final Set<UUID> topicMembers = ConcurrentHashMap.newKeySet();
+    /**
+     * The latest event of each snapshot read or written, by snapshot id, as
+     * the engine truncates the logs by snapshot.
+     */
+    private final Map<UUID, UUID> snapshotEvents = new ConcurrentHashMap<>();
+
+    private final WatchService watchService;
+    private final Thread reader;
+    private final ScheduledExecutorService heartbeat;
+    private volatile boolean closed;
+
+    /**
+     * Opens the topics in the directory and joins the nodes sharing it,
+     * storing the events of new logs as JSON.
+     *
+     * @param directory the directory, created if needed
+     * @param pollMillis how often the subscribed event logs are read when
+     * the file system reports no changes
+     */
+    public SharedDirectoryBackend(Path directory, long pollMillis) {
+        this(directory, pollMillis, TopicPayloadCodec.JSON);
+    }
+
+    /**
+     * Opens the topics in the directory and joins the nodes sharing it.
+     *
+     * @param directory the directory, created if needed
+     * @param pollMillis how often the subscribed event logs are read when
+     * the file system reports no changes
+     * @param codec the codec of the events of the logs created by this
+     * node
+     */
+    public SharedDirectoryBackend(Path directory, long pollMillis,
+            TopicPayloadCodec codec) {
+        this.codec = codec;
+        this.logs = directory.resolve("logs");
+        this.snapshots = directory.resolve("snapshots");
+        this.members = directory.resolve("members");
+        this.memberFile = members.resolve(nodeId.toString());
+        this.pollMillis = Math.max(1, pollMillis);
+        try {
+            Files.createDirectories(logs);
+            Files.createDirectories(snapshots);
+            Files.createDirectories(members);
+            watchService = logs.getFileSystem().newWatchService();
+            logs.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Failed to open the shared directory " + directory, e);
+        }
+        // The live nodes must be known before any topic is read, so that
+        // they are not reported as left.
+        updateMembers();
+
+        reader = new Thread(this::runReader);
+        reader.setDaemon(true);
+        reader.setName("Backend-Reader");
+        reader.start();
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("Backend-Heartbeat");
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(this::updateMembers, heartbeatMillis,
+                heartbeatMillis, TimeUnit.MILLISECONDS);
+        logger.info("Node {} joined the nodes sharing {}", nodeId, directory);
+    }
+
+    /**
+     * Leaves the other nodes and stops reading the event logs.
+     */
+    public void close() {
+        closed = true;
+        heartbeat.shutdownNow();
+        try {
+            watchService.close();
+            Files.deleteIfExists(memberFile);
+        } catch (IOException e) {
+            logger.debug("Failed to leave the shared directory", e);
+        }
+        eventLogs.values().forEach(FileEventLog::close);
+    }
+
+    @Override
+    public EventLog openEventLog(String logId) {
+        return eventLogs.computeIfAbsent(logId,
+                id -> new FileEventLog(fileName(id, "")));
+    }
+
+    @Override
+    public Registration addMembershipListener(MembershipListener listener) {
+        synchronized (liveMembers) {
+            membershipListeners.add(listener);
+            for (UUID member : liveMembers) {
+                listener.handleMembershipEvent(new MembershipEvent(
+                        MembershipEventType.JOIN, member,
+                        getCollaborationEngine()));
+            }
+        }
+        return () -> membershipListeners.remove(listener);
+    }
+
+    @Override
+    public UUID getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public CompletableFuture<Snapshot> loadLatestSnapshot(String name) {
+        try {
+            Snapshot snapshot = readSnapshot(
+                    snapshots.resolve(fileName(name, ".snapshot")));
+            if (snapshot != null) {
+                rememberSnapshot(snapshot.getId(), snapshot.getPayload());
+            }
+            return CompletableFuture.completedFuture(snapshot);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> replaceSnapshot(String name,
+            UUID expectedId, UUID newId, String payload) {
+        Path file = snapshots.resolve(fileName(name, ".snapshot"));
+        Path lockFile = snapshots.resolve(fileName(name, ".lock"));
+        synchronized (processLock(lockFile)) {
+            return replaceSnapshot(file, lockFile, expectedId, newId, payload);
+        }
+    }
+
+    private CompletableFuture<Void> replaceSnapshot(Path file, Path lockFile,
+            UUID expectedId, UUID newId, String payload) {
+        try (FileChannel lockChannel = FileChannel.open(lockFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = lockChannel.lock()) {
+            if (isExpected(readSnapshot(file), expectedId)) {
+                Path temp = Files.createTempFile(snapshots, null, null);
+                Files.writeString(temp, newId + "\n" + payload);
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                rememberSnapshot(newId, payload);
+            }
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * @return {@code true} if the current snapshot is the expected one. A
+     * topic opened from a snapshot expects the latest event of the snapshot
+     * rather than its id, so that is accepted too.
+     */
+    private static boolean isExpected(Snapshot current, UUID expectedId) {
+        if (current == null || expectedId == null) {
+            return current == null && expectedId == null;
+        }
+        if (expectedId.equals(current.getId())) {
+            return true;
+        }
+        try {
+            return expectedId.equals(latestEvent(
+                    objectMapper.readTree(current.getPayload())));
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+    }
+
+    private static UUID latestEvent(JsonNode snapshot) {
+        JsonNode latest = snapshot.get("latest");
+        return latest != null && latest.isTextual()
+                ? UUID.fromString(latest.asText()) : null;
+    }
+
+    /**
+     * Notes the latest event of a snapshot, for truncating the log by the
+     * snapshot later, and the nodes of the topic.
+     */
+    private void rememberSnapshot(UUID snapshotId, String payload) {
+        try {
+            JsonNode snapshot = objectMapper.readTree(payload);
+            UUID latest = latestEvent(snapshot);
+            if (latest != null) {
+                snapshotEvents.put(snapshotId, latest);
+            }
+            JsonNode nodes = snapshot.get("backend-nodes");
+            if (nodes != null) {
+                nodes.forEach(node -> topicMembers
+                        .add(UUID.fromString(node.asText())));
+            }
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            logger.debug("Failed to read the snapshot {}", snapshotId, e);
+        }
+    }
+
+    /**
+     * Notes the node of an event of a node joining a topic.
+     */
+    private void rememberEvent(String event) {
+        if (!event.contains("\"node-join\"")) {
+            return;
+        }
+        try {
+            JsonNode node = objectMapper.readTree(event).get("node-id");
+            if (node != null) {
+                topicMembers.add(UUID.fromString(node.asText()));
+            }
+        } catch (JsonProcessingException | IllegalArgumentException e) {
+            logger.debug("Failed to read the event {}", event, e);
+        }
+    }
+
+    private static Object processLock(Path file) {
+        return processLocks.computeIfAbsent(file.toAbsolutePath().normalize(),
+                key -> new Object());
+    }
+
+    private static Snapshot readSnapshot(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        String content = Files.readString(file);
+        int separator = content.indexOf('\n');
+        return new Snapshot(UUID.fromString(content.substring(0, separator)),
+                content.substring(separator + 1));
+    }
+
+    /**
+     * @return the codec with the given id, the one of this node or a
+     * built-in one
+     */
+    private TopicPayloadCodec codec(byte id) throws IOException {
+        for (TopicPayloadCodec candidate : List.of(codec,
+                TopicPayloadCodec.JSON, TopicPayloadCodec.SMILE)) {
+            if (candidate.getId() == id) {
+                return candidate;
+            }
+        }
+        throw new IOException("Unknown codec " + id);
+    }
+
+    private static String fileName(String name, String suffix) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8) + suffix;
+    }
+
+    /**
+     * Reads the event logs changed according to the file system, and all
+     * of the subscribed ones at least once per poll interval. Runs in a
+     * single thread, so the events of each log are delivered in order.
+     */
+    private void runReader() {
+        long lastPoll = 0;
+        while (!closed) {
+            try {
+                WatchKey key = watchService.poll(pollMillis,
+                        TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path) {
+                            readChanged((Path) event.context());
+                        }
+                    }
+                    key.reset();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastPoll >= pollMillis) {
+                    lastPoll = now;
+                    eventLogs.values().forEach(this::read);
+                }
+            } catch (ClosedWatchServiceException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.warn("Failed to read the event logs", e);
+            }
+        }
+    }
+
+    private void readChanged(Path fileName) {
+        String name = fileName.toString();
+        if (!name.endsWith(".log")) {
+            return;
+        }
+        // The name is the log id and the generation.
+        name = name.substring(0, name.length() - ".log".length());
+        int separator = name.lastIndexOf('.');
+        if (separator > 0) {
+            FileEventLog log = eventLogs.get(URLDecoder.decode(
+                    name.substring(0, separator), StandardCharsets.UTF_8));
+            if (log != null) {
+                read(log);
+            }
+        }
+    }
+
+    private void read(FileEventLog log) {
+        if (log.read()) {
+            leaveDepartedMembers();
+        }
+    }
+
+    /**
+     * Reports the nodes named in the topics that are not alive as left. The
+     * live nodes are only updated by the heartbeat, so the file of a node
+     * not known to be alive is checked first, as the node may have just
+     * started. It is left only when its file is gone or has been silent
+     * for longer than {@link #memberTimeoutMillis}.
+     */
+    private void leaveDepartedMembers() {
+        long now = System.currentTimeMillis();
+        synchronized (liveMembers) {
+            for (UUID member : Set.copyOf(topicMembers)) {
+                if (!liveMembers.contains(member) && !isAlive(
+                        members.resolve(member.toString()), now)) {
+                    topicMembers.remove(member);
+                    fireMembershipEvent(MembershipEventType.LEAVE, member);
+                }
+            }
+        }
+    }
+
+    /**
+     * Touches the file of this node and compares the live nodes with the
+     * previous ones. The files of the nodes that have been gone for a
+     * while are removed.
+     */
+    private void updateMembers() {
+        try {
+            long now = System.currentTimeMillis();
+            Files.write(memberFile, new byte[0]);
+            Set<UUID> alive;
+            try (Stream<Path> files = Files.list(members)) {
+                alive = files.filter(file -> isAlive(file, now))
+                        .map(file -> UUID.fromString(file.getFileName().toString()))
+                        .collect(Collectors.toSet());
+            }
+            alive.add(nodeId);
+            synchronized (liveMembers) {
+                for (UUID member : alive) {
+                    if (liveMembers.add(member)) {
+                        fireMembershipEvent(MembershipEventType.JOIN, member);
+                    }
+                }
+                for (UUID member : Set.copyOf(liveMembers)) {
+                    if (!alive.contains(member)) {
+                        liveMembers.remove(member);
+                        topicMembers.remove(member);
+                        fireMembershipEvent(MembershipEventType.LEAVE, member);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to update the nodes", e);
+        }
+    }
+
+    private static boolean isAlive(Path file, long now) {
+        try {
+            long silentMillis = now
+                    - Files.getLastModifiedTime(file).toMillis();
+            if (silentMillis > memberRetentionMillis) {
+                Files.deleteIfExists(file);
+            }
+            return silentMillis < memberTimeoutMillis;
+        } catch (IOException e) {
+            // Removed by a node leaving.
+            return false;
+        }
+    }
+
+    private void fireMembershipEvent(MembershipEventType type, UUID member) {
+        logger.info("Node {} {}", member,
+                type == MembershipEventType.JOIN ? "joined" : "left");
+        if (membershipListeners.isEmpty()) {
+            // Not used by an engine yet, the listeners get the live nodes
+            // when they are added.
+            return;
+        }
+        MembershipEvent event = new MembershipEvent(type, member,
+                getCollaborationEngine());
+        membershipListeners
+                .forEach(listener -> listener.handleMembershipEvent(event));
+    }
+
+    /**
+     * An event log stored in files shared by the nodes, one per generation.
+     * Each file starts with the position of its first record in the whole
+     * log, so the readers keep their position when moving to the next
+     * generation.
+     */
+    private class FileEventLog implements EventLog {
+        private final String name;
+        private final Path lockFile;
+        private final Object writeLock;
+
+        /**
+         * Writing state, guarded by the write lock, which is shared with the
+         * other nodes in this process.
+         */
+        private FileChannel lockChannel;
+        private FileChannel writeChannel;
+        private long writeGeneration;
+        private TopicPayloadCodec writeCodec;
+
+        /**
+         * Reading state, guarded by this log.
+         */
+        private FileChannel readChannel;
+        private long readGeneration;
+        private long readStart;
+        private TopicPayloadCodec readCodec;
+        private long position;
+        private BiConsumer<UUID, String> subscriber;
+        private boolean caughtUp;
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        FileEventLog(String name) {
+            this.name = name;
+            this.lockFile = logs.resolve(name + ".lock");
+            this.writeLock = processLock(lockFile);
+        }
+
+        @Override
+        public void submitEvent(UUID trackingId, String event) {
+            try {
+                synchronized (writeLock) {
+                    // The lock orders the appends of all the nodes.
+                    try (FileLock lock = lock()) {
+                        openLatestGeneration();
+                        byte[] payload = writeCodec.encode(event);
+                        ByteBuffer record = ByteBuffer
+                                .allocate(headerSize + payload.length);
+                        record.putLong(trackingId.getMostSignificantBits())
+                                .putLong(trackingId.getLeastSignificantBits())
+                                .putInt(payload.length).put(payload).flip();
+                        while (record.hasRemaining()) {
+                            writeChannel.write(record);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to " + name,
+                        e);
+            }
+        }
+
+        @Override
+        public synchronized Registration subscribe(UUID newerThan,
+                BiConsumer<UUID, String> eventSubscriber)
+                throws EventIdNotFoundException {
+            if (subscriber != null) {
+                throw new IllegalStateException(
+                        "Already subscribed to " + name);
+            }
+            closeReadChannel();
+            readGeneration = Math.max(0, latestGeneration());
+            // Set to the start of the generation when it is opened.
+            position = -1;
+            if (newerThan != null) {
+                // Skip the events up to the given one.
+                UUID id;
+                do {
+                    id = readRecord(null);
+                } while (id != null && !id.equals(newerThan));
+                if (id == null) {
+                    throw new EventIdNotFoundException(
+                            "Event " + newerThan + " not found in " + name);
+                }
+            }
+            subscriber = eventSubscriber;
+            caughtUp = false;
+            return () -> {
+                synchronized (FileEventLog.this) {
+                    subscriber = null;
+                }
+            };
+        }
+
+        /**
+         * Drops the events before the latest event of the given snapshot,
+         * by copying the rest to a new generation of the log.
+         *
+         * @param olderThan id of a snapshot, as the engine truncates the log
+         * at the previous snapshot after making a new one, or the latest
+         * event of the snapshot, when the topic was opened from it
+         */
+        @Override
+        public void truncate(UUID olderThan) {
+            if (olderThan == null) {
+                return;
+            }
+            UUID eventId = snapshotEvents.remove(olderThan);
+            if (eventId == null) {
+                eventId = olderThan;
+            }
+            try {
+                synchronized (writeLock) {
+                    try (FileLock lock = lock()) {
+                        openLatestGeneration();
+                        compact(eventId);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to truncate {}", name, e);
+            }
+        }
+
+        /**
+         * Delivers the complete records appended since the last read.
+         *
+         * @return {@code true} if the subscriber has just caught up with the
+         * log for the first time
+         */
+        synchronized boolean read() {
+            while (subscriber != null) {
+                if (readRecord(subscriber) == null) {
+                    if (!caughtUp) {
+                        caughtUp = true;
+                        return true;
+                    }
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        synchronized void close() {
+            subscriber = null;
+            closeReadChannel();
+            synchronized (writeLock) {
+                try {
+                    if (writeChannel != null) {
+                        writeChannel.close();
+                    }
+                    if (lockChannel != null) {
+                        lockChannel.close();
+                    }
+                } catch (IOException e) {
+                    logger.debug("Failed to close {}", name, e);
+                }
+            }
+        }
+
+        private Path generationFile(long generation) {
+            return logs.resolve(name + "." + generation + ".log");
+        }
+
+        /**
+         * @return the latest generation of the log, or -1 if the log has no
+         * files yet
+         */
+        private long latestGeneration() {
+            return generations().max().orElse(-1);
+        }
+
+        /**
+         * @return the generation after the one being read, or -1 if it is
+         * the latest one
+         */
+        private long nextGeneration() {
+            if (Files.exists(generationFile(readGeneration + 1))) {
+                return readGeneration + 1;
+            }
+            if (Files.exists(generationFile(readGeneration))) {
+                return -1;
+            }
+            // Both removed by the truncations made while reading this one.
+            return generations().filter(
+                    generation -> generation > readGeneration).min()
+                    .orElse(-1);
+        }
+
+        private LongStream generations() {
+            String prefix = name + ".";
+            long[] generations;
+            try (Stream<Path> files = Files.list(logs)) {
+                generations = files.map(file -> file.getFileName().toString())
+                        .filter(file -> file.startsWith(prefix)
+                                && file.endsWith(".log"))
+                        .map(file -> file.substring(prefix.length(),
+                                file.length() - ".log".length()))
+                        .filter(generation -> !generation.isEmpty()
+                                && generation.chars()
+                                        .allMatch(Character::isDigit))
+                        .mapToLong(Long::parseLong).toArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to list " + logs, e);
+            }
+            return LongStream.of(generations);
+        }
+
+        /**
+         * Takes the file lock of the log. Called holding the write lock.
+         */
+        private FileLock lock() throws IOException {
+            if (lockChannel == null) {
+                lockChannel = FileChannel.open(lockFile,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            return lockChannel.lock();
+        }
+
+        /**
+         * Opens the latest generation for appending, creating the first one
+         * if needed. Called holding the locks.
+         */
+        private void openLatestGeneration() throws IOException {
+            if (writeChannel == null) {
+                writeGeneration = latestGeneration();
+                if (writeGeneration < 0) {
+                    writeGeneration = 0;
+                    createGeneration(0, 0, codec.getId(), null, 0);
+                }
+            }
+            while (Files.exists(generationFile(writeGeneration + 1))) {
+                // Truncated by another node.
+                if (writeChannel != null) {
+                    writeChannel.close();
+                    writeChannel = null;
+                }
+                writeGeneration++;
+            }
+            if (writeChannel == null) {
+                Path file = generationFile(writeGeneration);
+                try (FileChannel channel = FileChannel.open(file,
+                        StandardOpenOption.READ)) {
+                    writeCodec = codec(readCodecId(channel));
+                }
+                writeChannel = FileChannel.open(file, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+        }
+
+        /**
+         * Copies the records from the given one on to a new generation,
+         * which the writers and readers move to, and removes the generation
+         * before the current one. Called holding the locks.
+         */
+        private void compact(UUID eventId) throws IOException {
+            Path file = generationFile(writeGeneration);
+            try (FileChannel source = FileChannel.open(file,
+                    StandardOpenOption.READ)) {
+                long size = source.size();
+                ByteBuffer header = ByteBuffer.allocate(headerSize);
+                long offset = fileHeaderSize;
+                while (offset + headerSize <= size) {
+                    header.clear();
+                    readFully(source, header, offset);
+                    UUID id = new UUID(header.getLong(), header.getLong());
+                    if (id.equals(eventId)) {
+                        break;
+                    }
+                    offset += headerSize + header.getInt();
+                }
+                if (offset + headerSize > size || offset == fileHeaderSize) {
+                    // Not in this generation, or nothing before it.
+                    return;
+                }
+                long generation = writeGeneration + 1;
+                createGeneration(generation,
+                        readStart(source) + offset - fileHeaderSize,
+                        readCodecId(source), source, offset);
+                Files.deleteIfExists(generationFile(writeGeneration - 1));
+                logger.debug("Truncated {} to generation {}, dropped {} bytes",
+                        name, generation, offset - fileHeaderSize);
+            }
+            openLatestGeneration();
+        }
+
+        /**
+         * Writes a generation file, atomically so that the readers never
+         * see it without its header.
+         *
+         * @param generation the generation
+         * @param start position of the first record in the whole log
+         * @param codecId the codec of the records
+         * @param source file to copy the records from, or {@code null}
+         * @param from position in the source to copy from
+         */
+        private void createGeneration(long generation, long start,
+                byte codecId, FileChannel source, long from)
+                throws IOException {
+            Path temp = Files.createTempFile(logs, name, ".tmp");
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(fileHeaderSize);
+                header.putLong(start).put(codecId).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                if (source != null) {
+                    long offset = from;
+                    long size = source.size();
+                    while (offset < size) {
+                        offset += source.transferTo(offset, size - offset,
+                                channel);
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(temp, generationFile(generation),
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void closeReadChannel() {
+            if (readChannel != null) {
+                try {
+                    readChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to close {}", name, e);
+                }
+                readChannel = null;
+            }
+        }
+
+        /**
+         * Opens the generation being read, or the next one if it has
+         * already been removed.
+         *
+         * @return {@code false} if there is nothing to read yet
+         */
+        private boolean openReadChannel() throws IOException {
+            if (!Files.exists(generationFile(readGeneration))) {
+                long next = nextGeneration();
+                if (next < 0) {
+                    return false;
+                }
+                readGeneration = next;
+            }
+            readChannel = FileChannel.open(generationFile(readGeneration),
+                    StandardOpenOption.READ);
+            readStart = readStart(readChannel);
+            readCodec = codec(readCodecId(readChannel));
+            if (position < readStart) {
+                if (position >= 0) {
+                    logger.warn("Events of {} were truncated before they "
+                            + "were read", name);
+                }
+                position = readStart;
+            }
+            return true;
+        }
+
+        /**
+         * Reads the record at the current position, if it has been written
+         * completely, and hands it to the consumer. Moves on to the next
+         * generation at the end of a truncated one.
+         *
+         * @param consumer receives the event, or {@code null} to skip it
+         * @return the id of the event, or {@code null} if there was no
+         * complete record
+         */
+        private UUID readRecord(BiConsumer<UUID, String> consumer) {
+            try {
+                if (readChannel == null && !openReadChannel()) {
+                    return null;
+                }
+                long offset = fileHeaderSize + position - readStart;
+                if (!hasRecord(offset)) {
+                    long next = nextGeneration();
+                    if (next < 0) {
+                        return null;
+                    }
+                    // Nothing is appended to a generation after a later one
+                    // has been created, so check once more before moving
+                    // on.
+                    if (!hasRecord(offset)) {
+                        closeReadChannel();
+                        readGeneration = next;
+                        return readRecord(consumer);
+                    }
+                }
+                ByteBuffer header = ByteBuffer.allocate(headerSize);
+                readFully(readChannel, header, offset);
+                UUID id = new UUID(header.getLong(), header.getLong());
+                int length = header.getInt();
+                if (buffer.capacity() < length) {
+                    buffer = ByteBuffer.allocate(length);
+                }
+                buffer.clear().limit(length);
+                readFully(readChannel, buffer, offset + headerSize);
+                String event = readCodec.decode(buffer.array(), 0, length);
+                position += headerSize + length;
+                rememberEvent(event);
+                if (consumer != null) {
+                    consumer.accept(id, event);
+                }
+                return id;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to read " + name, e);
+            }
+        }
+
+        /**
+         * @return {@code true} if a complete record starts at the offset in
+         * the generation being read
+         */
+        private boolean hasRecord(long offset) throws IOException {
+            long available = readChannel.size() - offset;
+            if (available < headerSize) {
+                return false;
+            }
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+            readFully(readChannel, length, offset + 2 * Long.BYTES);
+            return available >= headerSize + length.getInt();
+        }
+
+        private long readStart(FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(fileHeaderSize);
+            readFully(channel, header, 0);
+            return header.getLong();
+        }
+
+        private byte readCodecId(FileChannel channel) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(fileHeaderSize);
+            readFully(channel, header, 0);
+            return header.get(Long.BYTES);
+        }
+
+        private void readFully(FileChannel channel, ByteBuffer target,
+                long from) throws IOException {
+            long offset = from;
+            while (target.hasRemaining()) {
+                int read = channel.read(target, offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + name);
+                }
+                offset += read;
+            }
+            target.flip();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.jensjansson.ce.collaboration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Stores the events as Smile. The tokens are copied from one format to the
+ * other as they are read, without building a tree of the event. The
+ * factories are thread safe and shared, as they keep the symbol tables and
+ * buffers that make the parsing cheap.
+ */
+class SmilePayloadCodec implements TopicPayloadCodec {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final SmileFactory smileFactory = new SmileFactory();
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public byte[] encode(String event) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(event.length());
+        try (JsonParser parser = jsonFactory.createParser(event);
+                JsonGenerator generator = smileFactory.createGenerator(out)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode an event", e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public String decode(byte[] bytes, int offset, int length) {
+        StringWriter out = new StringWriter(2 * length);
+        try (JsonParser parser = smileFactory.createParser(bytes, offset,
+                length); JsonGenerator generator = jsonFactory
+                        .createGenerator(out)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to decode an event", e);
+        }
+        return out.toString();
+    }
+}
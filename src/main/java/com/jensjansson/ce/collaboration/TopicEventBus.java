@@ -0,0 +1,273 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.collaborationengine.CollaborationEngine;
+import com.vaadin.collaborationengine.CollaborationMap;
+import com.vaadin.collaborationengine.EntryScope;
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.function.SerializableConsumer;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Delivers transient events about a topic, like a save, to the UIs
+ * subscribed to them, without storing them in the topic they are about.
+ *
+ * <p>An event is handed to each subscriber of its topic on this node once,
+ * as the object that was published, in the UI of the subscriber. Events
+ * published before subscribing are not delivered.</p>
+ *
+ * <p>When the engine has a backend shared by several nodes, the events are
+ * also relayed to the other nodes through a single map in the
+ * {@code topic-events} topic, where each node has one entry. The entry is
+ * removed as soon as the event has been relayed, so the map stays empty
+ * between the events, although the backend still logs each of them. A
+ * node converts the events of the other nodes to the type its subscribers
+ * expect with a shared mapper. Without such a backend, nothing is written
+ * to the engine.</p>
+ */
+public class TopicEventBus {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(TopicEventBus.class);
+
+    private static final String TOPIC_ID = "topic-events";
+    private static final String MAP_NAME = "events";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static TopicEventBus instance;
+
+    /**
+     * Identifies the events of this node in the relay map.
+     */
+    private final String nodeKey = UUID.randomUUID().toString();
+
+    /**
+     * Subscriptions by topic id.
+     */
+    private final Map<String, List<Subscriber<?>>> subscribers = new ConcurrentHashMap<>();
+
+    private volatile CollaborationMap relayMap;
+
+    /**
+     * Set while the entries already in the relay map are handed to a new
+     * subscription, as they are events published before it.
+     */
+    private volatile boolean replaying;
+
+    private TopicEventBus(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            boolean relay) {
+        if (!relay) {
+            return;
+        }
+        CollaborationEngine ce = ceSupplier.get();
+        UserInfo systemUser = new UserInfo("topic-event-bus");
+        ce.openTopicConnection(ce.getSystemContext(), TOPIC_ID, systemUser,
+                topicConnection -> {
+                    CollaborationMap map = topicConnection
+                            .getNamedMap(MAP_NAME);
+                    replaying = true;
+                    Registration registration = map.subscribe(event -> {
+                        if (!replaying && !nodeKey.equals(event.getKey())) {
+                            receive(event.getValue(Envelope.class));
+                        }
+                    });
+                    replaying = false;
+                    relayMap = map;
+                    return () -> {
+                        registration.remove();
+                        relayMap = null;
+                    };
+                });
+    }
+
+    /**
+     * Called by the {@link com.jensjansson.ce.Application} class on startup
+     * to create the bus.
+     *
+     * @param ceSupplier the Collaboration Engine instance, not {@code null}
+     * @param relay {@code true} to relay the events to the other nodes,
+     * when the engine has a backend shared by several nodes
+     */
+    public static void createInstance(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            boolean relay) {
+        if (instance != null) {
+            throw new IllegalStateException(
+                    "Only 1 instance should be created");
+        }
+        instance = new TopicEventBus(ceSupplier, relay);
+    }
+
+    public static TopicEventBus getInstance() {
+        return Objects.requireNonNull(instance,
+                "The bus has not been created");
+    }
+
+    /**
+     * Publishes an event to the subscribers of a topic.
+     *
+     * @param topicId the topic
+     * @param event the event, serializable with Jackson to reach the other
+     * nodes
+     * @return future completed when the engine has relayed the event, or
+     * right away if it isn't relayed
+     */
+    public CompletableFuture<Void> publish(String topicId, Object event) {
+        deliver(topicId, event.getClass().getName(), event, null);
+        CollaborationMap map = relayMap;
+        if (map == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            Envelope envelope = new Envelope(topicId,
+                    event.getClass().getName(),
+                    objectMapper.valueToTree(event));
+            CompletableFuture<Void> relayed = map.put(nodeKey, envelope,
+                    EntryScope.CONNECTION);
+            // Unless a later event of this node has replaced it.
+            relayed.thenRun(() -> map.replace(nodeKey, envelope, null));
+            return relayed;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to relay an event of {}", topicId, e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Subscribes to the events of a type in a topic. The listener is called
+     * while the UI is locked.
+     *
+     * @param ui the UI the subscription belongs to
+     * @param topicId the topic
+     * @param type the type of the events
+     * @param listener called with each event
+     * @return registration for ending the subscription
+     */
+    public <T> Registration subscribe(UI ui, String topicId, Class<T> type,
+            SerializableConsumer<T> listener) {
+        Subscriber<T> subscriber = new Subscriber<>(ui, type, listener);
+        subscribers.compute(topicId, (id, list) -> {
+            List<Subscriber<?>> topicSubscribers = list != null ? list
+                    : new CopyOnWriteArrayList<>();
+            topicSubscribers.add(subscriber);
+            return topicSubscribers;
+        });
+        return () -> subscribers.computeIfPresent(topicId, (id, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private void receive(Envelope envelope) {
+        // The removals of the relayed events have no envelope.
+        if (envelope != null && envelope.getTopicId() != null) {
+            deliver(envelope.getTopicId(), envelope.getType(), null,
+                    envelope.getPayload());
+        }
+    }
+
+    /**
+     * Hands an event to the subscribers of its type, either as the object
+     * or converted from the relayed JSON.
+     */
+    private void deliver(String topicId, String type, Object event,
+            JsonNode payload) {
+        List<Subscriber<?>> topicSubscribers = subscribers.get(topicId);
+        if (topicSubscribers == null) {
+            return;
+        }
+        for (Subscriber<?> subscriber : topicSubscribers) {
+            if (subscriber.type.getName().equals(type)) {
+                subscriber.deliver(event, payload);
+            }
+        }
+    }
+
+    private static class Subscriber<T> {
+        private final UI ui;
+        private final Class<T> type;
+        private final SerializableConsumer<T> listener;
+
+        Subscriber(UI ui, Class<T> type, SerializableConsumer<T> listener) {
+            this.ui = ui;
+            this.type = type;
+            this.listener = listener;
+        }
+
+        void deliver(Object event, JsonNode payload) {
+            T value;
+            try {
+                value = event != null ? type.cast(event)
+                        : objectMapper.treeToValue(payload, type);
+            } catch (JsonProcessingException e) {
+                logger.warn("Failed to read a relayed {}", type.getName(), e);
+                return;
+            }
+            try {
+                ui.access(() -> listener.accept(value));
+            } catch (UIDetachedException e) {
+                // The UI is gone, its subscriptions end with it.
+            }
+        }
+    }
+
+    /**
+     * An event relayed to the other nodes.
+     */
+    public static class Envelope {
+        private String topicId;
+        private String type;
+        private JsonNode payload;
+
+        public Envelope() {
+        }
+
+        Envelope(String topicId, String type, JsonNode payload) {
+            this.topicId = topicId;
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public String getTopicId() {
+            return topicId;
+        }
+
+        public void setTopicId(String topicId) {
+            this.topicId = topicId;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public JsonNode getPayload() {
+            return payload;
+        }
+
+        public void setPayload(JsonNode payload) {
+            this.payload = payload;
+        }
+    }
+}
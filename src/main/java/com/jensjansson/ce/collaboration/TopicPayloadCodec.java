@@ -0,0 +1,61 @@
+package com.jensjansson.ce.collaboration;
+
+import java.util.Locale;
+
+/**
+ * Encodes the events of the topics for the {@link SharedDirectoryBackend},
+ * which stores them and hands them to the other nodes. The events are the
+ * JSON documents of the Collaboration Engine.
+ *
+ * <p>The id of the codec is stored with the events it has encoded, so the
+ * events written by another node or by an earlier run are decoded with the
+ * codec that wrote them.</p>
+ */
+public interface TopicPayloadCodec {
+
+    /**
+     * The events as UTF-8 JSON, as the engine writes them.
+     */
+    TopicPayloadCodec JSON = new JsonPayloadCodec();
+
+    /**
+     * The events as Smile, the binary form of JSON, where the property
+     * names repeated in an event are written once.
+     */
+    TopicPayloadCodec SMILE = new SmilePayloadCodec();
+
+    /**
+     * @return the id stored with the encoded events, unique among the
+     * codecs
+     */
+    byte getId();
+
+    /**
+     * @param event an event of the engine, as JSON
+     * @return the encoded event
+     */
+    byte[] encode(String event);
+
+    /**
+     * @param bytes buffer holding an encoded event
+     * @param offset start of the event in the buffer
+     * @param length length of the event
+     * @return the event, as JSON
+     */
+    String decode(byte[] bytes, int offset, int length);
+
+    /**
+     * @param name {@code json} or {@code smile}, in any case
+     * @return the codec with the given name
+     */
+    static TopicPayloadCodec forName(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+        case "json":
+            return JSON;
+        case "smile":
+            return SMILE;
+        default:
+            throw new IllegalArgumentException("Unknown codec " + name);
+        }
+    }
+}
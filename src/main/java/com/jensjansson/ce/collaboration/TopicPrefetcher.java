@@ -0,0 +1,296 @@
+package com.jensjansson.ce.collaboration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.jensjansson.ce.data.service.PersonService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vaadin.collaborationengine.CollaborationEngine;
+import com.vaadin.collaborationengine.CollaborationMessagePersister;
+import com.vaadin.collaborationengine.MessageManager;
+import com.vaadin.collaborationengine.UserInfo;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Warms up the topic of a person that is likely to be opened in the editor
+ * soon, for example when the pointer is over its edit button.
+ *
+ * <p>A warm-up loads the entity into the read model of the
+ * {@link PersonService} and keeps a connection to the topic open, with the
+ * system connection context, through a {@link MessageManager} that loads
+ * the latest comments into the topic. The editor opened on the person then
+ * reads the entity from memory and finds the comments in a topic that is
+ * already active. The field values are not warmed up, the editor's binder
+ * still sets them when the topic has none. The warm-up is released when it hasn't been asked for again for
+ * a while, whether the editor was opened or not, as the editor keeps the
+ * topic active with its own connections.</p>
+ *
+ * <p>A warm-up also makes the comments expire from the topic
+ * {@link #commentsExpiration} after the last user has left. The topic keeps
+ * the expiration until the comments expire, so it is set with a connection
+ * that is closed right away. The comments of a topic opened without a
+ * warm-up are kept in it.</p>
+ *
+ * <p>The work is done in a single background thread. At most
+ * {@link #maxTopics} topics are warm at a time, further warm-ups are
+ * skipped. The warm-ups are counted by the {@code editor.prefetch} counter,
+ * tagged with whether they were started, extended or skipped, and the warm
+ * topics by the {@code editor.prefetch.topics} gauge.</p>
+ */
+public class TopicPrefetcher {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(TopicPrefetcher.class);
+
+    /**
+     * Maximum number of topics kept warm at a time.
+     */
+    private static final int maxTopics = 50;
+
+    /**
+     * How long the comments are kept in a topic after the last user has
+     * left. They are persisted, so they are only kept for the users coming
+     * back soon.
+     */
+    private static final Duration commentsExpiration = Duration.ofMinutes(15);
+
+    private static TopicPrefetcher instance;
+
+    private final SerializableSupplier<CollaborationEngine> ceSupplier;
+    private final PersonService personService;
+    private final CollaborationMessagePersister commentPersister;
+    private final long timeoutMillis;
+    private final UserInfo systemUser = new UserInfo("topic-prefetcher");
+    private final ScheduledExecutorService worker;
+
+    /**
+     * Warm topics, by id. Guarded by itself.
+     */
+    private final Map<String, WarmTopic> topics = new HashMap<>();
+
+    private final Counter started;
+    private final Counter extended;
+    private final Counter skipped;
+
+    private TopicPrefetcher(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            PersonService personService,
+            CollaborationMessagePersister commentPersister,
+            long timeoutMillis, MeterRegistry meterRegistry) {
+        this.ceSupplier = ceSupplier;
+        this.personService = personService;
+        this.commentPersister = commentPersister;
+        this.timeoutMillis = Math.max(1, timeoutMillis);
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName("Topic-Prefetcher");
+            return thread;
+        });
+        started = prefetchCounter(meterRegistry, "started");
+        extended = prefetchCounter(meterRegistry, "extended");
+        skipped = prefetchCounter(meterRegistry, "skipped");
+        Gauge.builder("editor.prefetch.topics", this,
+                TopicPrefetcher::getTopicCount)
+                .description("Topics warmed up for the editor")
+                .register(meterRegistry);
+    }
+
+    private static Counter prefetchCounter(MeterRegistry meterRegistry,
+            String result) {
+        return Counter.builder("editor.prefetch")
+                .description("Topics warmed up for the editor")
+                .tag("result", result).register(meterRegistry);
+    }
+
+    /**
+     * Called by the {@link com.jensjansson.ce.Application} class on startup
+     * to create the prefetcher.
+     *
+     * @param ceSupplier the Collaboration Engine instance, not {@code null}
+     * @param personService service the entities are loaded with
+     * @param commentPersister persister the comments are loaded with
+     * @param timeoutMillis how long a warm-up is kept after it was last
+     * asked for
+     * @param meterRegistry registry for the metrics of the prefetcher
+     */
+    public static void createInstance(
+            SerializableSupplier<CollaborationEngine> ceSupplier,
+            PersonService personService,
+            CollaborationMessagePersister commentPersister,
+            long timeoutMillis, MeterRegistry meterRegistry) {
+        if (instance != null) {
+            throw new IllegalStateException(
+                    "Only 1 instance should be created");
+        }
+        instance = new TopicPrefetcher(ceSupplier, personService,
+                commentPersister, timeoutMillis, meterRegistry);
+    }
+
+    public static TopicPrefetcher getInstance() {
+        return Objects.requireNonNull(instance,
+                "The prefetcher has not been created");
+    }
+
+    /**
+     * Releases the warm-ups. Called when the application is shut down.
+     */
+    public static void shutdown() {
+        if (instance != null) {
+            instance.worker.shutdownNow();
+            synchronized (instance.topics) {
+                instance.topics.values().forEach(WarmTopic::close);
+                instance.topics.clear();
+            }
+        }
+    }
+
+    /**
+     * Warms up the topic of a person, or keeps it warm for longer if it
+     * already is.
+     *
+     * @param topicId the topic of the person
+     * @param personId id of the person
+     */
+    public void prefetch(String topicId, Integer personId) {
+        synchronized (topics) {
+            WarmTopic topic = topics.get(topicId);
+            if (topic != null) {
+                topic.scheduleRelease();
+                extended.increment();
+                return;
+            }
+            if (topics.size() >= maxTopics) {
+                skipped.increment();
+                return;
+            }
+            topic = new WarmTopic(topicId);
+            topics.put(topicId, topic);
+            topic.scheduleRelease();
+            started.increment();
+            WarmTopic warming = topic;
+            worker.execute(() -> warming.open(personId));
+        }
+    }
+
+    /**
+     * @param topicId the topic
+     * @return {@code true} if the topic has been warmed up and not released
+     * yet, {@code false} while a warm-up is still in progress
+     */
+    public boolean isWarm(String topicId) {
+        synchronized (topics) {
+            WarmTopic topic = topics.get(topicId);
+            return topic != null && topic.messageManager != null;
+        }
+    }
+
+    private int getTopicCount() {
+        synchronized (topics) {
+            return topics.size();
+        }
+    }
+
+    /**
+     * A topic kept active until it hasn't been asked for in a while.
+     */
+    private class WarmTopic {
+        private final String topicId;
+        /**
+         * Guarded by the topics map.
+         */
+        private MessageManager messageManager;
+        private ScheduledFuture<?> release;
+        private boolean closed;
+
+        WarmTopic(String topicId) {
+            this.topicId = topicId;
+        }
+
+        /**
+         * Loads the entity and connects to the topic. Run in the worker
+         * thread.
+         */
+        void open(Integer personId) {
+            try {
+                personService.get(personId);
+                CollaborationEngine ce = ceSupplier.get();
+                MessageManager manager = new MessageManager(
+                        ce.getSystemContext(), systemUser, topicId,
+                        commentPersister, ceSupplier);
+                setCommentsExpiration(ce);
+                synchronized (topics) {
+                    if (closed) {
+                        manager.close();
+                    } else {
+                        messageManager = manager;
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Failed to warm up {}", topicId, e);
+            }
+        }
+
+        /**
+         * Sets the expiration of the list the message managers keep the
+         * comments in. The message manager doesn't give access to its
+         * connection, so another one is opened for it. Run in the worker
+         * thread.
+         */
+        private void setCommentsExpiration(CollaborationEngine ce) {
+            CompletableFuture<Void> set = new CompletableFuture<>();
+            Registration connection = ce.openTopicConnection(
+                    ce.getSystemContext(), topicId, systemUser,
+                    topicConnection -> {
+                        topicConnection
+                                .getNamedList(MessageManager.class.getName())
+                                .setExpirationTimeout(commentsExpiration);
+                        set.complete(null);
+                        return null;
+                    });
+            // Closed after this task, which may be the one activating it.
+            set.thenRunAsync(connection::remove, worker);
+        }
+
+        /**
+         * Releases the topic after the timeout, unless it is asked for
+         * again. Called holding the topics map.
+         */
+        void scheduleRelease() {
+            if (release != null) {
+                release.cancel(false);
+            }
+            release = worker.schedule(() -> {
+                synchronized (topics) {
+                    if (topics.remove(topicId, this)) {
+                        close();
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Called holding the topics map.
+         */
+        void close() {
+            closed = true;
+            if (messageManager != null) {
+                messageManager.close();
+                messageManager = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.jensjansson.ce.data.entity;
+
+import java.time.Instant;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.FractionalSeconds;
+
+import com.jensjansson.ce.data.AbstractEntity;
+
+/**
+ * A comment posted to the topic of an entity, with the user who posted it.
+ * Indexed by topic and time, as the comments are always read per topic in
+ * time order.
+ */
+@Entity
+@Table(indexes = @Index(name = "comment_message_topic_time",
+        columnList = "topicId, time"))
+public class CommentMessage extends AbstractEntity {
+
+    private String topicId;
+
+    private String userId;
+
+    private String userName;
+
+    private String userImage;
+
+    private String text;
+
+    private Instant time;
+
+    public String getTopicId() {
+        return topicId;
+    }
+
+    public void setTopicId(String topicId) {
+        this.topicId = topicId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    public String getUserImage() {
+        return userImage;
+    }
+
+    public void setUserImage(String userImage) {
+        this.userImage = userImage;
+    }
+
+    @Column(length = 4000)
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    /**
+     * The time is stored with full precision, as the comments are matched
+     * with the ones in the topic by their time too.
+     */
+    @FractionalSeconds(9)
+    public Instant getTime() {
+        return time;
+    }
+
+    public void setTime(Instant time) {
+        this.time = time;
+    }
+}
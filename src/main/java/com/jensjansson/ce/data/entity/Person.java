@@ -27,6 +27,27 @@ public class Person extends AbstractEntity {
 
     private String happiness;
 
+    public Person() {
+    }
+
+    /**
+     * Creates a detached copy of another instance, including the id.
+     *
+     * @param other the instance to copy
+     */
+    public Person(Person other) {
+        setId(other.getId());
+        firstName = other.firstName;
+        lastName = other.lastName;
+        avatar = other.avatar;
+        email = other.email;
+        phoneNumber = other.phoneNumber;
+        title = other.title;
+        department = other.department;
+        team = other.team;
+        happiness = other.happiness;
+    }
+
     public String getFirstName() {
         return firstName;
     }
@@ -9,6 +9,7 @@ import com.jensjansson.ce.data.service.PersonRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.vaadin.artur.exampledata.DataType;
 import org.vaadin.artur.exampledata.ExampleDataGenerator;
@@ -19,11 +20,13 @@ import com.vaadin.flow.spring.annotation.SpringComponent;
 public class DataGenerator {
 
     @Bean
-    public CommandLineRunner loadData(PersonRepository personRepository) {
+    public CommandLineRunner loadData(PersonRepository personRepository,
+            ApplicationEventPublisher eventPublisher) {
         return args -> {
             Logger logger = LoggerFactory.getLogger(getClass());
             if (personRepository.count() != 0L) {
                 logger.info("Using existing database");
+                eventPublisher.publishEvent(new DataReadyEvent(this));
                 return;
             }
             long seed = 123L;
@@ -34,6 +37,7 @@ public class DataGenerator {
             personRepository.saveAll(generateData(100, seed));
 
             logger.info("Generated demo data");
+            eventPublisher.publishEvent(new DataReadyEvent(this));
         };
     }
 
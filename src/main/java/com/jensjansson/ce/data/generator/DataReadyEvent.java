@@ -0,0 +1,14 @@
+package com.jensjansson.ce.data.generator;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by {@link DataGenerator} once the database contains the demo
+ * data, either generated on this startup or left from an earlier run.
+ */
+public class DataReadyEvent extends ApplicationEvent {
+
+    public DataReadyEvent(Object source) {
+        super(source);
+    }
+}
@@ -0,0 +1,186 @@
+package com.jensjansson.ce.data.service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.jensjansson.ce.data.entity.CommentMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+
+import com.vaadin.collaborationengine.CollaborationMessage;
+import com.vaadin.collaborationengine.CollaborationMessagePersister;
+import com.vaadin.collaborationengine.UserInfo;
+
+/**
+ * Stores the comments of the
+ * {@link com.vaadin.collaborationengine.CollaborationMessageList} in the
+ * database.
+ *
+ * <p>New comments are written in the background in batches by a
+ * {@link WriteBehindQueue}. Until a comment has been written it is served
+ * from memory, as the message list fetches the comments again right after
+ * persisting one. After shutdown the comments are written right away.</p>
+ *
+ * <p>When a topic is opened, only the latest page of its comments is
+ * loaded, so a long thread isn't read into memory at once. The rest of the
+ * fetches read the comments since the latest one the list already has. The
+ * older comments are read a page at a time with
+ * {@link #fetchEarlierMessages(String, Instant)}. The comments are read with
+ * the index on the topic and time, before the oldest comment loaded into
+ * the topic, see {@link #getOldestLoadedTime(String)}.</p>
+ *
+ * <p>The backlog is measured by the {@code comments.write-behind.backlog}
+ * gauge and the batch writes by the {@code comments.write-behind.writes}
+ * timer.</p>
+ */
+@Service
+public class CommentMessagePersister implements CollaborationMessagePersister {
+
+    private final transient CommentMessageRepository repository;
+    private final int historySize;
+    private final transient WriteBehindQueue<CommentMessage> queue;
+    /**
+     * Time of the oldest comment loaded into each topic, by topic id.
+     */
+    private final Map<String, Instant> oldestLoaded = new ConcurrentHashMap<>();
+
+    public CommentMessagePersister(CommentMessageRepository repository,
+            MeterRegistry meterRegistry,
+            @Value("${comments.history-size:50}") int historySize,
+            @Value("${comments.write-behind.batch-size:50}") int batchSize,
+            @Value("${comments.write-behind.flush-interval-millis:500}") long flushIntervalMillis) {
+        this.repository = repository;
+        this.historySize = Math.max(1, historySize);
+        // Every comment is written, none are coalesced.
+        queue = new WriteBehindQueue<>("comments.write-behind", "comments",
+                "Comment-Writer", null, repository::saveAll, batchSize,
+                Integer.MAX_VALUE, flushIntervalMillis, meterRegistry);
+    }
+
+    @Override
+    public Stream<CollaborationMessage> fetchMessages(FetchQuery query) {
+        String topicId = query.getTopicId();
+        Instant since = query.getSince();
+        // The list has no comments of the topic yet, start from the latest
+        // page.
+        boolean latestPage = Instant.EPOCH.equals(since);
+        List<CommentMessage> comments;
+        if (latestPage) {
+            comments = new ArrayList<>(repository
+                    .findByTopicIdOrderByTimeDescIdDesc(topicId,
+                            Limit.of(historySize)));
+            Collections.reverse(comments);
+        } else {
+            comments = new ArrayList<>(repository
+                    .findByTopicIdAndTimeGreaterThanEqualOrderByTimeAscIdAsc(
+                            topicId, since));
+        }
+        for (CommentMessage comment : queue.getPending()) {
+            if (comment.getTopicId().equals(topicId)
+                    && !comment.getTime().isBefore(since)) {
+                comments.add(comment);
+            }
+        }
+        // A comment written while reading can be both read and pending.
+        List<CollaborationMessage> messages = comments.stream()
+                .sorted(Comparator.comparing(CommentMessage::getTime))
+                .map(CommentMessagePersister::toMessage).distinct()
+                .collect(Collectors.toList());
+        if (latestPage && messages.size() > historySize) {
+            messages = messages.subList(messages.size() - historySize,
+                    messages.size());
+        }
+        if (latestPage) {
+            if (messages.isEmpty()) {
+                oldestLoaded.remove(topicId);
+            } else {
+                oldestLoaded.put(topicId, messages.get(0).getTime());
+            }
+        }
+        return messages.stream();
+    }
+
+    /**
+     * Reads the page of comments before the ones a message list has, which
+     * are not in the topic. The pending comments are not included, as they
+     * are newer than the ones in the list.
+     *
+     * @param topicId the topic
+     * @param before time of the oldest comment the list has
+     * @return at most {@link #getPageSize()} comments posted before the
+     * time, in the order they were posted
+     */
+    public List<CollaborationMessage> fetchEarlierMessages(String topicId,
+            Instant before) {
+        List<CommentMessage> comments = new ArrayList<>(repository
+                .findByTopicIdAndTimeLessThanOrderByTimeDescIdDesc(topicId,
+                        before, Limit.of(historySize)));
+        Collections.reverse(comments);
+        return comments.stream().map(CommentMessagePersister::toMessage)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param topicId the topic
+     * @return time of the oldest comment loaded into the topic when its
+     * comments were last loaded, which is the oldest one the message lists
+     * have, or {@code null} if there were none or they were loaded on
+     * another node
+     */
+    public Instant getOldestLoadedTime(String topicId) {
+        return oldestLoaded.get(topicId);
+    }
+
+    /**
+     * @return number of comments loaded when a topic is opened, and read at
+     * a time by {@link #fetchEarlierMessages(String, Instant)}
+     */
+    public int getPageSize() {
+        return historySize;
+    }
+
+    @Override
+    public void persistMessage(PersistRequest request) {
+        CollaborationMessage message = request.getMessage();
+        CommentMessage comment = new CommentMessage();
+        comment.setTopicId(request.getTopicId());
+        comment.setUserId(message.getUser().getId());
+        comment.setUserName(message.getUser().getName());
+        comment.setUserImage(message.getUser().getImage());
+        comment.setText(message.getText());
+        comment.setTime(message.getTime());
+        queue.add(comment);
+    }
+
+    /**
+     * @return number of comments waiting to be written
+     */
+    public int getBacklog() {
+        return queue.getBacklog();
+    }
+
+    /**
+     * Stops the writer thread and writes everything still pending.
+     */
+    @PreDestroy
+    public void shutdown() {
+        queue.shutdown();
+    }
+
+    private static CollaborationMessage toMessage(CommentMessage comment) {
+        UserInfo user = new UserInfo(comment.getUserId(),
+                comment.getUserName(), comment.getUserImage());
+        return new CollaborationMessage(user, comment.getText(),
+                comment.getTime());
+    }
+}
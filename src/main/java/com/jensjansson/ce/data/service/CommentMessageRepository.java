@@ -0,0 +1,45 @@
+package com.jensjansson.ce.data.service;
+
+import java.time.Instant;
+import java.util.List;
+
+import com.jensjansson.ce.data.entity.CommentMessage;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface CommentMessageRepository
+        extends JpaRepository<CommentMessage, Integer> {
+
+    /**
+     * Reads the latest comments of a topic, newest first.
+     *
+     * @param topicId the topic
+     * @param limit maximum number of comments
+     * @return the comments
+     */
+    List<CommentMessage> findByTopicIdOrderByTimeDescIdDesc(String topicId,
+            Limit limit);
+
+    /**
+     * Reads the comments of a topic posted at or after the given time, in
+     * the order they were posted.
+     *
+     * @param topicId the topic
+     * @param since time of the oldest comment to read
+     * @return the comments
+     */
+    List<CommentMessage> findByTopicIdAndTimeGreaterThanEqualOrderByTimeAscIdAsc(
+            String topicId, Instant since);
+
+    /**
+     * Reads the latest comments of a topic posted before the given time,
+     * newest first.
+     *
+     * @param topicId the topic
+     * @param before time after the newest comment to read
+     * @param limit maximum number of comments
+     * @return the comments
+     */
+    List<CommentMessage> findByTopicIdAndTimeLessThanOrderByTimeDescIdDesc(
+            String topicId, Instant before, Limit limit);
+}
@@ -0,0 +1,94 @@
+package com.jensjansson.ce.data.service;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Positions of the {@link com.jensjansson.ce.data.entity.Person} entities in
+ * id order, for paging through them with keyset queries.
+ *
+ * <p>An anchor is the id of the entity just before a given offset, so the
+ * page starting at that offset is read with {@code id > anchor} instead of
+ * skipping rows. The anchors are collected from the pages that have been
+ * read. The total count is cached too. Both stay valid until an entity is
+ * inserted or deleted, as updates don't move the entities. Values computed
+ * before an invalidation are not stored.</p>
+ */
+class PersonPageCache {
+
+    /**
+     * Maximum number of anchors kept. With pages of 50 entities this covers
+     * half a million rows.
+     */
+    private static final int maxAnchors = 10000;
+
+    private final NavigableMap<Integer, Integer> anchors = new ConcurrentSkipListMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile int count = -1;
+    private volatile long countGeneration = -1;
+
+    /**
+     * @return the current generation, to pass to the methods storing values
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param offset position of an entity
+     * @return the anchor at the given offset or the closest one before it,
+     * or {@code null} if there is none
+     */
+    Map.Entry<Integer, Integer> floorAnchor(int offset) {
+        return anchors.floorEntry(offset);
+    }
+
+    /**
+     * Stores the id of the entity just before an offset.
+     *
+     * @param offset position of the following entity
+     * @param id id of the entity at {@code offset - 1}
+     * @param generation generation when the id was read
+     */
+    void putAnchor(int offset, int id, long generation) {
+        if (anchors.size() >= maxAnchors) {
+            anchors.clear();
+        }
+        anchors.put(offset, id);
+        if (generation != this.generation.get()) {
+            // Invalidated while reading, the anchor may be wrong.
+            anchors.remove(offset, id);
+        }
+    }
+
+    /**
+     * @param counter reads the count from the database
+     * @return the cached count, read with the given counter if needed
+     */
+    int getCount(IntSupplier counter) {
+        long current = generation.get();
+        if (countGeneration == current) {
+            return count;
+        }
+        int value = counter.getAsInt();
+        synchronized (this) {
+            if (generation.get() == current) {
+                count = value;
+                countGeneration = current;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Drops the anchors and the count. Called when entities are inserted or
+     * deleted.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+        anchors.clear();
+    }
+}
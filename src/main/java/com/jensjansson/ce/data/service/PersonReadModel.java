@@ -0,0 +1,117 @@
+package com.jensjansson.ce.data.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.jensjansson.ce.data.entity.Person;
+
+/**
+ * Copies of the most recently used {@link Person} entities, shared by all
+ * the UIs and the bots.
+ *
+ * <p>Saves replace the copies in place, so the model only goes to the
+ * database for entities that are not in it. Callers always get their own
+ * copies, as the entities are edited through binders and by the bots. The
+ * least recently used entities are evicted when the model is full.</p>
+ *
+ * <p>Entities loaded from the database are only added if no save has
+ * stored a newer version in the meantime.</p>
+ */
+class PersonReadModel {
+
+    private final Map<Integer, Person> persons;
+
+    /**
+     * @param maxSize maximum number of entities kept
+     */
+    PersonReadModel(int maxSize) {
+        persons = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, Person> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Reads entities, loading the missing ones with the given loader.
+     *
+     * @param ids ids of the entities
+     * @param loader reads entities from the database
+     * @return copies of the entities that exist, in the order of the ids
+     */
+    List<Person> getAll(Collection<Integer> ids,
+            Function<Collection<Integer>, List<Person>> loader) {
+        Map<Integer, Person> found = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        synchronized (persons) {
+            for (Integer id : ids) {
+                Person person = persons.get(id);
+                if (person != null) {
+                    found.put(id, new Person(person));
+                } else {
+                    missing.add(id);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            List<Person> loaded = loader.apply(missing);
+            synchronized (persons) {
+                for (Person person : loaded) {
+                    Person cached = persons.putIfAbsent(person.getId(),
+                            new Person(person));
+                    found.put(person.getId(),
+                            new Person(cached != null ? cached : person));
+                }
+            }
+        }
+        List<Person> result = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            Person person = found.get(id);
+            if (person != null) {
+                result.add(person);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores saved entities, replacing the previous versions.
+     *
+     * @param saved saved entities, with ids
+     */
+    void put(Collection<Person> saved) {
+        synchronized (persons) {
+            for (Person person : saved) {
+                persons.put(person.getId(), new Person(person));
+            }
+        }
+    }
+
+    /**
+     * Removes a deleted entity.
+     *
+     * @param id id of the entity
+     */
+    void delete(Integer id) {
+        synchronized (persons) {
+            persons.remove(id);
+        }
+    }
+
+    /**
+     * Removes all entities, for when the database has been changed without
+     * the service.
+     */
+    void clear() {
+        synchronized (persons) {
+            persons.clear();
+        }
+    }
+}
@@ -1,11 +1,65 @@
 package com.jensjansson.ce.data.service;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 import com.jensjansson.ce.data.entity.Person;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
 public interface PersonRepository extends JpaRepository<Person, Integer> {
 
     List<Person> findByFirstNameLikeIgnoreCase(String var1);
+
+    /**
+     * Reads ids in ascending order, starting after the given id, without
+     * loading the entities. Used for keyset paging.
+     *
+     * @param id id before the first one to read
+     * @param pageable the range of ids to read
+     * @return the ids
+     */
+    @Query("select p.id from Person p where p.id > :id order by p.id")
+    List<Integer> findIdsAfter(@Param("id") Integer id, Pageable pageable);
+
+    /**
+     * Streams the ids of all entities in ascending order, without loading
+     * the entities. Must be consumed in a transaction and closed.
+     *
+     * @return the ids
+     */
+    @Query("select p.id from Person p order by p.id")
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "100"))
+    Stream<Integer> streamIds();
+
+    /**
+     * Streams the searchable fields of all entities, without loading the
+     * entities. Must be consumed in a transaction and closed.
+     *
+     * @return the fields of each entity
+     */
+    @Query("select p.id as id, p.firstName as firstName, p.lastName as lastName,"
+            + " p.email as email, p.title as title from Person p")
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "100"))
+    Stream<SearchFields> streamSearchFields();
+
+    /**
+     * The fields of a {@link Person} that can be searched.
+     */
+    interface SearchFields {
+        Integer getId();
+
+        String getFirstName();
+
+        String getLastName();
+
+        String getEmail();
+
+        String getTitle();
+    }
 }
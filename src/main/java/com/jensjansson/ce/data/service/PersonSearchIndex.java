@@ -0,0 +1,167 @@
+package com.jensjansson.ce.data.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.jensjansson.ce.data.entity.Person;
+
+/**
+ * In-memory inverted index over the first name, last name, email and title
+ * of the {@link Person} entities.
+ *
+ * <p>The values are split into lower case words, and each word maps to the
+ * ids of the entities containing it. A query matches the entities where
+ * every word of the query is the beginning of some indexed word, so a
+ * search only walks the matching range of the sorted words instead of
+ * scanning all the entities.</p>
+ */
+class PersonSearchIndex {
+
+    private static final Pattern SEPARATORS = Pattern
+            .compile("[^\\p{L}\\p{N}]+");
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Ids of the entities containing each word. Guarded by the lock.
+     */
+    private final NavigableMap<String, Set<Integer>> idsByWord = new TreeMap<>();
+
+    /**
+     * Words of each entity, for removing them when the entity changes.
+     * Guarded by the lock.
+     */
+    private final Map<Integer, Set<String>> wordsById = new HashMap<>();
+
+    /**
+     * Replaces the contents of the index.
+     *
+     * @param entries the searchable fields of all the entities
+     */
+    void rebuild(Stream<PersonRepository.SearchFields> entries) {
+        lock.writeLock().lock();
+        try {
+            idsByWord.clear();
+            wordsById.clear();
+            entries.forEach(entry -> add(entry.getId(), words(
+                    entry.getFirstName(), entry.getLastName(),
+                    entry.getEmail(), entry.getTitle())));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or updates the entities in the index.
+     *
+     * @param persons saved entities, with ids
+     */
+    void put(Collection<Person> persons) {
+        lock.writeLock().lock();
+        try {
+            for (Person person : persons) {
+                remove(person.getId());
+                add(person.getId(), words(person.getFirstName(),
+                        person.getLastName(), person.getEmail(),
+                        person.getTitle()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an entity from the index.
+     *
+     * @param id id of the entity
+     */
+    void delete(Integer id) {
+        lock.writeLock().lock();
+        try {
+            remove(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the entities matching a query.
+     *
+     * @param query words to search for, not blank
+     * @return ids of the matching entities in ascending order
+     */
+    List<Integer> search(String query) {
+        Set<String> terms = words(query);
+        lock.readLock().lock();
+        try {
+            Set<Integer> result = null;
+            for (String term : terms) {
+                Set<Integer> matches = new HashSet<>();
+                idsByWord.subMap(term, true, term + Character.MAX_VALUE, true)
+                        .values().forEach(matches::addAll);
+                if (result == null) {
+                    result = matches;
+                } else {
+                    result.retainAll(matches);
+                }
+                if (result.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+            return result == null ? Collections.emptyList()
+                    : new ArrayList<>(new TreeSet<>(result));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void add(Integer id, Set<String> words) {
+        wordsById.put(id, words);
+        for (String word : words) {
+            idsByWord.computeIfAbsent(word, key -> new HashSet<>()).add(id);
+        }
+    }
+
+    private void remove(Integer id) {
+        Set<String> words = wordsById.remove(id);
+        if (words == null) {
+            return;
+        }
+        for (String word : words) {
+            Set<Integer> ids = idsByWord.get(word);
+            if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                idsByWord.remove(word);
+            }
+        }
+    }
+
+    private static Set<String> words(String... values) {
+        Set<String> words = new HashSet<>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            for (String word : SEPARATORS
+                    .split(value.toLowerCase(Locale.ROOT))) {
+                if (!word.isEmpty()) {
+                    words.add(word);
+                }
+            }
+        }
+        return words;
+    }
+}
@@ -1,19 +1,53 @@
 package com.jensjansson.ce.data.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.data.generator.DataReadyEvent;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import org.vaadin.artur.helpers.CrudService;
 
 @Service
 public class PersonService extends CrudService<Person, Integer> {
 
     private PersonRepository repository;
+    /**
+     * Kept in sync with the entities saved through this service.
+     */
+    private final PersonSearchIndex searchIndex = new PersonSearchIndex();
+    /**
+     * Anchors for the keyset paging and the cached count, invalidated when
+     * entities are inserted or deleted.
+     */
+    private final PersonPageCache pageCache = new PersonPageCache();
+    /**
+     * The most recently used entities, updated by the saves.
+     */
+    private final PersonReadModel readModel;
+    /**
+     * The saves made in the background, which the saves of this service are
+     * ordered with.
+     */
+    private volatile PersonWriteBehindQueue writeQueue;
 
-    public PersonService(@Autowired PersonRepository repository) {
+    public PersonService(@Autowired PersonRepository repository,
+            @Value("${persons.read-model.size:1000}") int readModelSize) {
         this.repository = repository;
+        this.readModel = new PersonReadModel(Math.max(1, readModelSize));
     }
 
     @Override
@@ -21,7 +55,246 @@ public class PersonService extends CrudService<Person, Integer> {
         return repository;
     }
 
+    /**
+     * Called by the queue, which depends on this service.
+     */
+    void setWriteQueue(PersonWriteBehindQueue writeQueue) {
+        this.writeQueue = writeQueue;
+    }
+
+    /**
+     * Reads an entity from the shared read model, which only goes to the
+     * database if the entity isn't in it.
+     *
+     * @param id id of the entity
+     * @return a copy of the entity that the caller can modify
+     */
+    @Override
+    public Optional<Person> get(Integer id) {
+        return findAllById(List.of(id)).stream().findFirst();
+    }
+
+    /**
+     * Reads entities from the shared read model, loading the missing ones
+     * from the database.
+     *
+     * @param ids ids of the entities
+     * @return copies of the entities that exist, in the order of the ids
+     */
+    public List<Person> findAllById(Collection<Integer> ids) {
+        return readModel.getAll(ids, getRepository()::findAllById);
+    }
+
+    /**
+     * Makes a state of an entity visible to the readers before it is
+     * written, for saves that are written in the background.
+     *
+     * @param person the entity, with an id
+     */
+    public void updateReadModel(Person person) {
+        readModel.put(List.of(person));
+    }
+
+    /**
+     * Drops a state made visible with {@link #updateReadModel(Person)} that
+     * could not be written, so the entity is read from the database again.
+     *
+     * @param id id of the entity
+     */
+    void evictFromReadModel(Integer id) {
+        readModel.delete(id);
+    }
+
+    /**
+     * Finds the entities where each word of the query is the beginning of a
+     * word in the first name, last name, email or title.
+     *
+     * @param query the words to search for, or blank for all entities
+     * @return the matching entities, ordered by id
+     */
     public List<Person> findByQuery(String query) {
-        return getRepository().findAll();
+        return findByQuery(query, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds one page of the entities matching a query, see
+     * {@link #findByQuery(String)}.
+     *
+     * @param query the words to search for, or blank for all entities
+     * @param offset index of the first entity to return
+     * @param limit maximum number of entities to return
+     * @return the matching entities, ordered by id
+     */
+    public List<Person> findByQuery(String query, int offset, int limit) {
+        if (query == null || query.isBlank()) {
+            return findPage(offset, limit);
+        }
+        List<Integer> ids = searchIndex.search(query);
+        int from = Math.min(offset, ids.size());
+        int to = (int) Math.min((long) from + limit, ids.size());
+        if (from == to) {
+            return Collections.emptyList();
+        }
+        return findAllById(ids.subList(from, to));
+    }
+
+    /**
+     * @param query the words to search for, or blank for all entities
+     * @return number of entities matching the query, see
+     * {@link #findByQuery(String)}
+     */
+    public int countByQuery(String query) {
+        if (query == null || query.isBlank()) {
+            return count();
+        }
+        return searchIndex.search(query).size();
+    }
+
+    /**
+     * @return number of entities, cached until entities are inserted or
+     * deleted
+     */
+    @Override
+    public int count() {
+        return pageCache.getCount(super::count);
+    }
+
+    /**
+     * Reads a page of all entities in id order with a keyset query, seeking
+     * past the id of the entity before the page. The anchor is known when
+     * the previous page has been read. Otherwise only the id just before the
+     * page is looked up, starting from the closest known anchor. Only the
+     * ids are read with the query, the entities come from the read model.
+     *
+     * @param offset index of the first entity to return
+     * @param limit maximum number of entities to return
+     * @return the entities, ordered by id
+     */
+    private List<Person> findPage(int offset, int limit) {
+        long generation = pageCache.getGeneration();
+        int after = Integer.MIN_VALUE;
+        if (offset > 0) {
+            Map.Entry<Integer, Integer> floor = pageCache.floorAnchor(offset);
+            int floorOffset = floor != null ? floor.getKey() : 0;
+            after = floor != null ? floor.getValue() : Integer.MIN_VALUE;
+            if (floorOffset < offset) {
+                List<Integer> ids = getRepository().findIdsAfter(after,
+                        PageRequest.of(offset - 1 - floorOffset, 1));
+                if (ids.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                after = ids.get(0);
+                pageCache.putAnchor(offset, after, generation);
+            }
+        }
+        List<Integer> ids = getRepository().findIdsAfter(after,
+                PageRequest.of(0, limit));
+        if (!ids.isEmpty()) {
+            pageCache.putAnchor(offset + ids.size(), ids.get(ids.size() - 1),
+                    generation);
+        }
+        return findAllById(ids);
+    }
+
+    /**
+     * Indexes the searchable fields of all entities once the demo data is in
+     * the database, and drops anything read before.
+     */
+    @EventListener(DataReadyEvent.class)
+    @Transactional(readOnly = true)
+    public void rebuildSearchIndex() {
+        try (Stream<PersonRepository.SearchFields> fields = getRepository()
+                .streamSearchFields()) {
+            searchIndex.rebuild(fields);
+        }
+        pageCache.invalidate();
+        readModel.clear();
+    }
+
+    /**
+     * Saves an entity right away. A state of it queued for a background
+     * save is discarded, as it is older.
+     */
+    @Override
+    public Person update(Person entity) {
+        PersonWriteBehindQueue queue = writeQueue;
+        if (queue != null && entity.getId() != null) {
+            return queue.saveNow(entity, this::save);
+        }
+        return save(entity);
+    }
+
+    private Person save(Person entity) {
+        boolean inserted = entity.getId() == null;
+        Person saved = super.update(entity);
+        searchIndex.put(List.of(saved));
+        readModel.put(List.of(saved));
+        if (inserted) {
+            pageCache.invalidate();
+        }
+        return saved;
+    }
+
+    @Override
+    public void delete(Integer id) {
+        super.delete(id);
+        searchIndex.delete(id);
+        readModel.delete(id);
+        pageCache.invalidate();
+    }
+
+    /**
+     * Reads the smallest ids without loading the entities. Only as many ids
+     * as needed are fetched from the database.
+     *
+     * @param limit maximum number of ids
+     * @return the ids in ascending order
+     */
+    @Transactional(readOnly = true)
+    public List<Integer> findIds(int limit) {
+        try (Stream<Integer> ids = getRepository().streamIds()) {
+            return ids.limit(limit).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Saves several entities at once, so they can be written in JDBC
+     * batches.
+     *
+     * @param persons the entities to save
+     * @return the saved entities
+     */
+    public List<Person> updateAll(Collection<Person> persons) {
+        return updateAll(persons, person -> false);
+    }
+
+    /**
+     * Saves several entities at once, see {@link #updateAll(Collection)}.
+     *
+     * @param persons the entities to save
+     * @param superseded tells the entities whose newer state has been made
+     * visible meanwhile, which are not put in the read model
+     * @return the saved entities
+     */
+    List<Person> updateAll(Collection<Person> persons,
+            Predicate<Person> superseded) {
+        boolean inserted = persons.stream()
+                .anyMatch(person -> person.getId() == null);
+        List<Person> saved = getRepository().saveAll(persons);
+        searchIndex.put(saved);
+        // saveAll returns the saved entities in the order of the given ones.
+        List<Person> current = new ArrayList<>(saved.size());
+        Iterator<Person> savedIterator = saved.iterator();
+        for (Person person : persons) {
+            Person savedPerson = savedIterator.next();
+            if (!superseded.test(person)) {
+                current.add(savedPerson);
+            }
+        }
+        readModel.put(current);
+        if (inserted) {
+            pageCache.invalidate();
+        }
+        return saved;
     }
 }
@@ -0,0 +1,99 @@
+package com.jensjansson.ce.data.service;
+
+import java.util.List;
+import java.util.function.Function;
+
+import com.jensjansson.ce.data.entity.Person;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Saves {@link Person} entities in the background, so the caller doesn't
+ * wait for the database.
+ *
+ * <p>Repeated saves of the same entity before it has been written are
+ * coalesced, only the latest state is written. The pending entities are
+ * saved with {@link PersonService#updateAll} in batches by a
+ * {@link WriteBehindQueue}. When the backlog is full, {@link #save(Person)}
+ * blocks until the writer has caught up. Everything still pending is
+ * written when the application shuts down. The queued state is readable
+ * through {@link PersonService} right away. A failed batch is tried again
+ * a few times, and an entity that can't be written is evicted from the read
+ * model, so the readers go back to the state in the database. The saves
+ * made with {@link PersonService#update(Person)} replace the queued state
+ * and are written after the batch in progress, so a queued save can't
+ * overwrite a later one.</p>
+ *
+ * <p>The backlog is measured by the {@code persons.write-behind.backlog}
+ * gauge and the batch writes by the {@code persons.write-behind.writes}
+ * timer.</p>
+ */
+@Service
+public class PersonWriteBehindQueue {
+
+    private final PersonService personService;
+    private final WriteBehindQueue<Person> queue;
+
+    public PersonWriteBehindQueue(PersonService personService,
+            MeterRegistry meterRegistry,
+            @Value("${persons.write-behind.batch-size:50}") int batchSize,
+            @Value("${persons.write-behind.capacity:1000}") int capacity,
+            @Value("${persons.write-behind.flush-interval-millis:500}") long flushIntervalMillis) {
+        this.personService = personService;
+        queue = new WriteBehindQueue<>("persons.write-behind", "persons",
+                "Person-Writer", Person::getId, this::write, batchSize,
+                capacity, flushIntervalMillis, meterRegistry);
+        queue.setQueuedListener(personService::updateReadModel);
+        // The queued state was made visible right away, but never reached
+        // the database.
+        queue.setDroppedListener(
+                person -> personService.evictFromReadModel(person.getId()));
+        personService.setWriteQueue(this);
+    }
+
+    /**
+     * Queues a copy of the entity to be saved. Blocks while the backlog is
+     * full, unless the entity is already queued. After shutdown the entity
+     * is saved right away.
+     *
+     * @param person the entity to save, with an id
+     */
+    public void save(Person person) {
+        queue.add(new Person(person));
+    }
+
+    /**
+     * Saves an entity right away, replacing its queued state, if any. Waits
+     * for a batch being written, which may contain an older state of it.
+     * Called by {@link PersonService#update(Person)}.
+     *
+     * @param person the entity, with an id
+     * @param save saves the entity
+     * @return the saved entity
+     */
+    Person saveNow(Person person, Function<Person, Person> save) {
+        return queue.writeNow(person, save);
+    }
+
+    private void write(List<Person> batch) {
+        // A newer state queued meanwhile is already in the read model.
+        personService.updateAll(batch, queue::isQueuedAgain);
+    }
+
+    /**
+     * @return number of entities waiting to be written
+     */
+    public int getBacklog() {
+        return queue.getBacklog();
+    }
+
+    /**
+     * Stops the writer thread and writes everything still pending.
+     */
+    @PreDestroy
+    public void shutdown() {
+        queue.shutdown();
+    }
+}
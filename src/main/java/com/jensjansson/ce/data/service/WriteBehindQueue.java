@@ -0,0 +1,443 @@
+package com.jensjansson.ce.data.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes items to the database in the background, so the caller doesn't
+ * wait for it.
+ *
+ * <p>A dedicated writer thread writes the pending items in batches, when a
+ * batch is full or the flush interval has passed. Items with the same key
+ * are coalesced, only the latest one is written. An item stays pending
+ * until it has been written, so it can be read in the meantime, and an item
+ * queued again while its previous state is being written is written again
+ * afterwards. When the backlog is full, {@link #add(Object)} blocks until
+ * the writer has caught up. Everything still pending is written on
+ * {@link #shutdown()}, after which the items are written right away.</p>
+ *
+ * <p>When a batch fails to be written, its items are written one at a
+ * time, so a single bad item doesn't hold back the rest. Items that fail
+ * stay pending and are tried again, after a delay that doubles with each
+ * failed write in a row. An item is dropped after {@link #maxAttempts}
+ * failed attempts, unless it has been queued again meanwhile.</p>
+ *
+ * <p>An item can also be written right away with
+ * {@link #writeNow(Object, Function)}, which replaces the pending item with
+ * the same key and is ordered with the background writes, so an older
+ * state can't be written after it.</p>
+ *
+ * <p>The backlog is measured by the {@code <name>.backlog} gauge, the
+ * batch writes by the {@code <name>.writes} timer and the dropped items by
+ * the {@code <name>.dropped} counter.</p>
+ *
+ * @param <T> type of the items
+ */
+class WriteBehindQueue<T> {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(WriteBehindQueue.class);
+
+    /**
+     * Number of times an item is tried before it is dropped.
+     */
+    private static final int maxAttempts = 5;
+
+    /**
+     * Delay after the first failed write. Doubled for each following one.
+     */
+    private static final long retryBaseDelayMillis = 500;
+
+    /**
+     * Longest delay between two failed writes.
+     */
+    private static final long maxRetryDelayMillis = 30000;
+
+    private final String itemName;
+    private final Function<T, ?> key;
+    private final Consumer<List<T>> writeAll;
+    private final int batchSize;
+    private final int capacity;
+    private final long flushIntervalMillis;
+
+    /**
+     * Items waiting to be written, by key, in the order they were first
+     * queued. Guarded by itself.
+     */
+    private final Map<Object, Queued<T>> pending = new LinkedHashMap<>();
+    /**
+     * Held while items are written, so the writes happen one at a time.
+     */
+    private final Object writeLock = new Object();
+    private final Thread writer;
+    private final Timer writes;
+    private final Counter droppedItems;
+    private volatile Consumer<T> queuedListener = item -> {
+    };
+    private volatile Consumer<T> droppedListener = item -> {
+    };
+    private volatile boolean stopped;
+
+    /**
+     * @param name prefix of the meter names
+     * @param itemName plural name of the items, for the logs and the meter
+     * descriptions
+     * @param threadName name of the writer thread
+     * @param key the coalescing key of an item, or {@code null} to write
+     * every item
+     * @param writeAll writes a batch of items
+     * @param batchSize maximum number of items written at once
+     * @param capacity maximum number of pending items
+     * @param flushIntervalMillis longest time an item waits for a batch to
+     * fill up
+     * @param meterRegistry registry for the metrics of the queue
+     */
+    WriteBehindQueue(String name, String itemName, String threadName,
+            Function<T, ?> key, Consumer<List<T>> writeAll, int batchSize,
+            int capacity, long flushIntervalMillis,
+            MeterRegistry meterRegistry) {
+        this.itemName = itemName;
+        this.key = key != null ? key : item -> new Object();
+        this.writeAll = writeAll;
+        this.batchSize = Math.max(1, batchSize);
+        this.capacity = Math.max(1, capacity);
+        this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+        Gauge.builder(name + ".backlog", this, WriteBehindQueue::getBacklog)
+                .description(capitalize(itemName) + " waiting to be written")
+                .register(meterRegistry);
+        this.writes = Timer.builder(name + ".writes")
+                .description(
+                        "Batches of " + itemName + " written to the database")
+                .register(meterRegistry);
+        this.droppedItems = Counter.builder(name + ".dropped")
+                .description(capitalize(itemName)
+                        + " dropped after failing to be written")
+                .register(meterRegistry);
+        writer = new Thread(this::runWriter);
+        writer.setDaemon(true);
+        writer.setName(threadName);
+        writer.start();
+    }
+
+    private static String capitalize(String text) {
+        return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+    }
+
+    /**
+     * @param listener called with each queued item, while the backlog is
+     * locked, so the listener sees the items in the order they are queued
+     */
+    void setQueuedListener(Consumer<T> listener) {
+        queuedListener = listener;
+    }
+
+    /**
+     * @param listener called with each item that is dropped after failing
+     * to be written too many times
+     */
+    void setDroppedListener(Consumer<T> listener) {
+        droppedListener = listener;
+    }
+
+    /**
+     * Queues an item to be written. Blocks while the backlog is full, unless
+     * an item with the same key is already queued. After shutdown the item
+     * is written right away, and dropped if that fails.
+     *
+     * @param item the item
+     */
+    void add(T item) {
+        Object itemKey = key.apply(item);
+        synchronized (pending) {
+            while (!stopped && pending.size() >= capacity
+                    && !pending.containsKey(itemKey)) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!stopped) {
+                pending.put(itemKey, new Queued<>(itemKey, item));
+                queuedListener.accept(item);
+                if (pending.size() >= batchSize) {
+                    pending.notifyAll();
+                }
+                return;
+            }
+        }
+        if (!writeItems(List.of(item))) {
+            droppedItems.increment();
+            droppedListener.accept(item);
+        }
+    }
+
+    /**
+     * Writes an item right away, in place of the pending item with the same
+     * key. Waits for a background write in progress, which may contain an
+     * older state of the item.
+     *
+     * @param item the item
+     * @param write writes the item
+     * @return the result of the write
+     */
+    <R> R writeNow(T item, Function<T, R> write) {
+        Object itemKey = key.apply(item);
+        synchronized (writeLock) {
+            synchronized (pending) {
+                if (pending.remove(itemKey) != null) {
+                    pending.notifyAll();
+                }
+            }
+            return write.apply(item);
+        }
+    }
+
+    /**
+     * @param item an item being written
+     * @return {@code true} if another item with the same key has been
+     * queued after it
+     */
+    boolean isQueuedAgain(T item) {
+        Object itemKey = key.apply(item);
+        synchronized (pending) {
+            Queued<T> queued = pending.get(itemKey);
+            return queued != null && queued.item != item;
+        }
+    }
+
+    /**
+     * @return copies of the items waiting to be written, including the ones
+     * being written, in the order they were queued
+     */
+    List<T> getPending() {
+        synchronized (pending) {
+            List<T> items = new ArrayList<>(pending.size());
+            pending.values().forEach(queued -> items.add(queued.item));
+            return items;
+        }
+    }
+
+    /**
+     * @return number of items waiting to be written
+     */
+    int getBacklog() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Stops the writer thread and writes everything still pending.
+     */
+    void shutdown() {
+        stopped = true;
+        synchronized (pending) {
+            pending.notifyAll();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Queued<T>> batch;
+        while (!(batch = peekBatch()).isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void runWriter() {
+        int failures = 0;
+        while (!stopped) {
+            try {
+                if (failures > 0) {
+                    backOff(failures);
+                } else {
+                    synchronized (pending) {
+                        if (pending.size() < batchSize) {
+                            pending.wait(flushIntervalMillis);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            List<Queued<T>> batch = peekBatch();
+            if (!batch.isEmpty()) {
+                failures = write(batch) ? 0 : failures + 1;
+            }
+        }
+    }
+
+    /**
+     * Waits before trying again after failed writes, until the delay has
+     * passed or the queue is shut down.
+     */
+    private void backOff(int failures) throws InterruptedException {
+        long delay = Math.min(maxRetryDelayMillis,
+                retryBaseDelayMillis << Math.min(failures - 1, 16));
+        long deadline = System.currentTimeMillis() + delay;
+        synchronized (pending) {
+            long remaining;
+            while (!stopped && (remaining = deadline
+                    - System.currentTimeMillis()) > 0) {
+                pending.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * @return at most one batch of the oldest pending items, without
+     * removing them, may be empty
+     */
+    private List<Queued<T>> peekBatch() {
+        synchronized (pending) {
+            List<Queued<T>> batch = new ArrayList<>(
+                    Math.min(batchSize, pending.size()));
+            Iterator<Queued<T>> iterator = pending.values().iterator();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                batch.add(iterator.next());
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Writes the items and removes them from the pending ones, unless they
+     * have been queued again meanwhile. If the batch fails, the items are
+     * written one at a time. Items that fail to be written are kept for
+     * another attempt, or dropped after too many.
+     *
+     * @return {@code true} if all the items were written
+     */
+    private boolean write(List<Queued<T>> batch) {
+        if (writeBatch(batch)) {
+            return true;
+        }
+        if (batch.size() == 1) {
+            failed(batch);
+            return false;
+        }
+        List<Queued<T>> failures = new ArrayList<>();
+        for (Queued<T> queued : batch) {
+            if (!writeBatch(List.of(queued))) {
+                failures.add(queued);
+            }
+        }
+        failed(failures);
+        return failures.isEmpty();
+    }
+
+    /**
+     * Writes the items at once and removes them from the pending ones. Items
+     * that have been replaced since the batch was taken are skipped.
+     *
+     * @return {@code true} if the items were written
+     */
+    private boolean writeBatch(List<Queued<T>> batch) {
+        synchronized (writeLock) {
+            List<T> items = new ArrayList<>(batch.size());
+            synchronized (pending) {
+                for (Queued<T> queued : batch) {
+                    if (pending.get(queued.key) == queued) {
+                        items.add(queued.item);
+                    }
+                }
+            }
+            if (!items.isEmpty() && !writeItems(items)) {
+                return false;
+            }
+        }
+        synchronized (pending) {
+            batch.forEach(this::removeIfUnchanged);
+            pending.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the items at once.
+     *
+     * @return {@code true} if the items were written
+     */
+    private boolean writeItems(List<T> items) {
+        try {
+            synchronized (writeLock) {
+                writes.record(() -> writeAll.accept(items));
+            }
+            logger.trace("Wrote {} {}", items.size(), itemName);
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to write {} {}", items.size(), itemName, e);
+            return false;
+        }
+    }
+
+    /**
+     * Counts a failed attempt for each of the items and drops the ones that
+     * have been tried too many times.
+     */
+    private void failed(List<Queued<T>> batch) {
+        List<T> dropped = new ArrayList<>();
+        synchronized (pending) {
+            for (Queued<T> queued : batch) {
+                // The items may be equal by id, so they are compared by
+                // identity.
+                if (pending.get(queued.key) == queued
+                        && ++queued.attempts >= maxAttempts) {
+                    pending.remove(queued.key);
+                    dropped.add(queued.item);
+                }
+            }
+            if (!dropped.isEmpty()) {
+                pending.notifyAll();
+            }
+        }
+        if (!dropped.isEmpty()) {
+            droppedItems.increment(dropped.size());
+            logger.warn("Dropped {} {} after {} attempts", dropped.size(),
+                    itemName, maxAttempts);
+            dropped.forEach(droppedListener);
+        }
+    }
+
+    /**
+     * Removes a written item, unless another item with the same key has
+     * replaced it. Called holding the backlog.
+     */
+    private void removeIfUnchanged(Queued<T> queued) {
+        if (pending.get(queued.key) == queued) {
+            pending.remove(queued.key);
+        }
+    }
+
+    /**
+     * A pending item, its key and the number of failed attempts to write
+     * it, guarded by the backlog.
+     */
+    private static class Queued<T> {
+        private final Object key;
+        private final T item;
+        private int attempts;
+
+        Queued(Object key, T item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+}
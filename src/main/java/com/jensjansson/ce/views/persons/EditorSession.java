@@ -0,0 +1,200 @@
+package com.jensjansson.ce.views.persons;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jensjansson.ce.bot.BotManager;
+import com.jensjansson.ce.collaboration.TopicEventBus;
+import com.jensjansson.ce.collaboration.TopicPrefetcher;
+import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.views.persons.EditorView.SaveNotification;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import com.vaadin.collaborationengine.CollaborationAvatarGroup;
+import com.vaadin.collaborationengine.CollaborationBinder;
+import com.vaadin.collaborationengine.CollaborationMessageList;
+import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.function.SerializableConsumer;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * The collaboration of an {@link EditorView} on the topic of the person
+ * being edited, from opening the person until the editor is closed or
+ * another person is opened.
+ *
+ * <p>The session connects the binder, the avatars and the comments to the
+ * topic, which each keep their own connection to it, and opens none of its
+ * own. The save notifications are events of the {@link TopicEventBus},
+ * subscribed to while the editor is attached, so they need no connection.
+ * Opening the person that is already open keeps the session, and closing
+ * the editor closes it.</p>
+ *
+ * <p>The time from opening a session until the response showing the
+ * editor is written is recorded in the {@code editor.session.open} timer.
+ * This is the time the server takes from the click on the edit button until
+ * the editor is sent, the field values of a topic that wasn't active yet
+ * may be pushed after it. The timer is tagged with whether the
+ * {@link TopicPrefetcher} had warmed up the topic by the time the button
+ * was clicked. The time
+ * taken to close a session is recorded in {@code editor.session.close},
+ * and the open sessions of all the editors are counted by the
+ * {@code editor.sessions} gauge.</p>
+ */
+class EditorSession {
+
+    private static final AtomicInteger openSessions = new AtomicInteger();
+
+    private final Component context;
+    private final CollaborationBinder<Person> binder;
+    private final CollaborationAvatarGroup avatarGroup;
+    private final CollaborationMessageList comments;
+    private final SerializableConsumer<SaveNotification> saveListener;
+    private final Timer openTimer;
+    private final Timer prefetchedOpenTimer;
+    private final Timer closeTimer;
+
+    private String topicId;
+    private Integer personId;
+    private Registration saveNotifications;
+    /**
+     * Started when the session is opened and stopped before the response
+     * showing the editor. Guarded by this session.
+     */
+    private Timer.Sample opening;
+
+    /**
+     * @param context the editor, which the connections belong to
+     * @param binder the binder of the editor fields
+     * @param avatarGroup the avatars of the users editing
+     * @param comments the comments on the person
+     * @param saveListener called with the saves of the person, while the UI
+     * is locked
+     * @param meterRegistry registry for the metrics of the sessions
+     */
+    EditorSession(Component context, CollaborationBinder<Person> binder,
+            CollaborationAvatarGroup avatarGroup,
+            CollaborationMessageList comments,
+            SerializableConsumer<SaveNotification> saveListener,
+            MeterRegistry meterRegistry) {
+        this.context = context;
+        this.binder = binder;
+        this.avatarGroup = avatarGroup;
+        this.comments = comments;
+        this.saveListener = saveListener;
+        this.openTimer = openTimer(meterRegistry, false);
+        this.prefetchedOpenTimer = openTimer(meterRegistry, true);
+        this.closeTimer = Timer.builder("editor.session.close")
+                .description("Closing an editor session")
+                .publishPercentiles(0.5, 0.99).register(meterRegistry);
+        Gauge.builder("editor.sessions", openSessions, AtomicInteger::get)
+                .description("Open editor sessions")
+                .register(meterRegistry);
+        context.addAttachListener(e -> subscribeToSaves(e.getUI()));
+        context.addDetachListener(e -> unsubscribeFromSaves());
+    }
+
+    private static Timer openTimer(MeterRegistry meterRegistry,
+            boolean prefetched) {
+        return Timer.builder("editor.session.open")
+                .description("Opening an editor on a person until the "
+                        + "response showing it")
+                .tag("prefetched", String.valueOf(prefetched))
+                .publishPercentiles(0.5, 0.99).register(meterRegistry);
+    }
+
+    /**
+     * @return the topic of the session, or {@code null} if it is closed
+     */
+    String getTopicId() {
+        return topicId;
+    }
+
+    /**
+     * Connects the editor to the topic of a person, closing the session on
+     * the previous person, if any.
+     *
+     * @param person the person, whose values are used if the topic has none,
+     * or {@code null} to just close the session
+     * @param topicId the topic of the person
+     * @param prefetched {@code true} if the topic was warm when the user
+     * asked for the person
+     */
+    void open(Person person, String topicId, boolean prefetched) {
+        if (person != null && Objects.equals(topicId, this.topicId)
+                && Objects.equals(person.getId(), personId)) {
+            return;
+        }
+        close();
+        if (person == null || topicId == null) {
+            return;
+        }
+        Timer.Sample sample = Timer.start();
+        Timer timer = prefetched ? prefetchedOpenTimer : openTimer;
+        synchronized (this) {
+            opening = sample;
+        }
+        openSessions.incrementAndGet();
+        this.topicId = topicId;
+        this.personId = person.getId();
+        binder.setTopic(topicId, () -> person);
+        avatarGroup.setTopic(topicId);
+        comments.setTopic(topicId);
+        // Make sure a bot is there to join the user.
+        BotManager.activateTopic(person.getId());
+        // The editor may not be attached yet, the UI handling the click is.
+        UI ui = UI.getCurrent();
+        if (ui != null) {
+            ui.beforeClientResponse(ui, execution -> opened(sample, timer));
+        }
+        context.getUI().ifPresent(this::subscribeToSaves);
+    }
+
+    /**
+     * Disconnects the editor from the topic.
+     */
+    void close() {
+        if (topicId == null) {
+            return;
+        }
+        Timer.Sample sample = Timer.start();
+        synchronized (this) {
+            opening = null;
+        }
+        unsubscribeFromSaves();
+        binder.setTopic(null, () -> null);
+        avatarGroup.setTopic(null);
+        comments.setTopic(null);
+        topicId = null;
+        personId = null;
+        openSessions.decrementAndGet();
+        sample.stop(closeTimer);
+    }
+
+    /**
+     * Records the opening time, unless the session has been closed since it
+     * was opened.
+     */
+    private synchronized void opened(Timer.Sample sample, Timer timer) {
+        if (opening == sample) {
+            sample.stop(timer);
+            opening = null;
+        }
+    }
+
+    private void subscribeToSaves(UI ui) {
+        if (topicId != null && saveNotifications == null) {
+            saveNotifications = TopicEventBus.getInstance().subscribe(ui,
+                    topicId, SaveNotification.class, saveListener);
+        }
+    }
+
+    private void unsubscribeFromSaves() {
+        if (saveNotifications != null) {
+            saveNotifications.remove();
+            saveNotifications = null;
+        }
+    }
+}
@@ -1,25 +1,24 @@
 package com.jensjansson.ce.views.persons;
 
-import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jensjansson.ce.collaboration.TopicEventBus;
 import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.data.service.CommentMessagePersister;
 import com.jensjansson.ce.data.service.PersonService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 
 import com.vaadin.collaborationengine.CollaborationAvatarGroup;
 import com.vaadin.collaborationengine.CollaborationBinder;
-import com.vaadin.collaborationengine.CollaborationEngine;
-import com.vaadin.collaborationengine.CollaborationMap;
+import com.vaadin.collaborationengine.CollaborationMessage;
 import com.vaadin.collaborationengine.CollaborationMessageInput;
 import com.vaadin.collaborationengine.CollaborationMessageList;
-import com.vaadin.collaborationengine.TopicConnectionRegistration;
 import com.vaadin.collaborationengine.UserInfo;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.button.ButtonVariant;
@@ -31,6 +30,8 @@ import com.vaadin.flow.component.html.H3;
 import com.vaadin.flow.component.html.Header;
 import com.vaadin.flow.component.html.Section;
 import com.vaadin.flow.component.icon.VaadinIcon;
+import com.vaadin.flow.component.messages.MessageList;
+import com.vaadin.flow.component.messages.MessageListItem;
 import com.vaadin.flow.component.notification.Notification;
 import com.vaadin.flow.component.notification.NotificationVariant;
 import com.vaadin.flow.component.radiobutton.RadioButtonGroup;
@@ -40,7 +41,6 @@ import com.vaadin.flow.component.tabs.Tabs;
 import com.vaadin.flow.component.textfield.TextField;
 import com.vaadin.flow.data.binder.ValidationException;
 import com.vaadin.flow.data.value.ValueChangeMode;
-import com.vaadin.flow.shared.Registration;
 
 public class EditorView extends Div {
 
@@ -61,6 +61,13 @@ public class EditorView extends Div {
 
     CollaborationMessageList list;
     CollaborationMessageInput input;
+    /**
+     * Comments older than the ones in the topic, loaded on request.
+     */
+    private MessageList earlierList;
+    private List<MessageListItem> earlierComments = new ArrayList<>();
+    private Instant earliestShown;
+    private Button showEarlier = new Button("Show earlier comments");
 
     private Button close = new Button();
     private Button delete = new Button("Delete...");
@@ -70,19 +77,29 @@ public class EditorView extends Div {
     private CollaborationAvatarGroup avatarGroup;
     private UserInfo localUser;
     private PersonService personService;
+    private CommentMessagePersister commentPersister;
+    /**
+     * Time from clicking save until the entity has been written and the
+     * other users notified.
+     */
+    private Timer saveTimer;
     private EditorActionNotifier editorActionNotifier;
     private CollaborationBinder<Person> binder;
 
     private Person person;
 
-    private CollaborationMap saveMap;
-    private Registration topicConnectionRegistration;
-    private TopicConnectionRegistration expirationRegistration;
+    private EditorSession session;
 
     public EditorView(UserInfo localUser, PersonService personService,
+            CommentMessagePersister commentPersister,
+            MeterRegistry meterRegistry,
             EditorActionNotifier editorActionNotifier) {
         this.localUser = localUser;
         this.personService = personService;
+        this.commentPersister = commentPersister;
+        this.saveTimer = Timer.builder("persons.saves")
+                .description("Saves from the editor")
+                .publishPercentiles(0.5, 0.99).register(meterRegistry);
         this.editorActionNotifier = editorActionNotifier;
 
         addClassNames("editor-view", "flex", "flex-col");
@@ -93,14 +110,17 @@ public class EditorView extends Div {
         delete.addClickListener(e -> editorActionNotifier.deletePerson());
         cancel.addClickListener(e -> editorActionNotifier.stopEditingPerson());
         save.addClickListener(e -> {
+            Timer.Sample sample = Timer.start();
             try {
                 binder.writeBean(person);
                 if (this.person != null) {
                     person.setId(this.person.getId());
                 }
-                editorActionNotifier.updateGrid(person);
                 personService.update(person);
                 sendSaveNotification();
+                // May close the editor, which closes the session.
+                editorActionNotifier.updateGrid(person);
+                sample.stop(saveTimer);
             } catch (ValidationException validationException) {
                 validationException.printStackTrace();
                 Notification.show(
@@ -114,6 +134,13 @@ public class EditorView extends Div {
         Div content = new Div(details, comments);
         content.addClassNames("flex", "flex-grow", "overflow-auto");
         add(header, content);
+
+        session = new EditorSession(this, binder, avatarGroup, list,
+                saved -> showSaveNotification(
+                        Objects.equals(saved.getUserId(), localUser.getId())
+                                ? "you"
+                                : saved.getUserName()),
+                meterRegistry);
     }
 
     private Header createHeader() {
@@ -224,7 +251,8 @@ public class EditorView extends Div {
     }
 
     private Section createComments() {
-        list = new CollaborationMessageList(localUser, null);
+        list = new CollaborationMessageList(localUser, null,
+                commentPersister);
         list.addClassNames("flex-grow");
         list.setSizeUndefined();
 
@@ -232,73 +260,74 @@ public class EditorView extends Div {
         input.addClassNames("bg-contrast-5");
         input.setSizeUndefined();
 
-        Section comments = new Section(list, input);
+        // Only the latest page of comments is loaded into the topic, the
+        // older ones are shown above it on request.
+        earlierList = new MessageList();
+        earlierList.setSizeUndefined();
+        earlierList.setVisible(false);
+        showEarlier.addThemeVariants(ButtonVariant.LUMO_TERTIARY,
+                ButtonVariant.LUMO_SMALL);
+        showEarlier.addClickListener(e -> showEarlierComments());
+
+        Section comments = new Section(showEarlier, earlierList, list, input);
         comments.addClassNames("editor-view-comments", "lg:flex", "flex-col",
                 "flex-grow", "hidden");
         comments.setWidth("50%");
         return comments;
     }
 
-    protected void editPerson(Person person, String topicId) {
+    /**
+     * @param person the person to edit, or {@code null} to close the editor
+     * @param topicId the topic of the person
+     * @param prefetched {@code true} if the topic was warmed up by the time
+     * the user asked for the person
+     */
+    protected void editPerson(Person person, String topicId,
+            boolean prefetched) {
         this.person = person;
-        //  A null topicId clears the form
-        binder.setTopic(topicId, () -> person);
-        avatarGroup.setTopic(topicId);
-        list.setTopic(topicId);
-        if (expirationRegistration != null) {
-            expirationRegistration.remove();
-        }
-        if (topicId != null) {
-            expirationRegistration = CollaborationEngine.getInstance()
-                    .openTopicConnection(this, topicId, localUser,
-                            topicConnection -> {
-                                topicConnection
-                                        .getNamedList(
-                                                CollaborationMessageList.class
-                                                        .getName())
-                                        .setExpirationTimeout(
-                                                Duration.ofMinutes(15));
-                                return null;
-                            });
+        if (!Objects.equals(topicId, session.getTopicId())) {
+            clearEarlierComments();
         }
-        connectToSaveNotifications(topicId);
+        //  A null topicId clears the form
+        session.open(person, topicId, prefetched);
     }
 
-    private void connectToSaveNotifications(String topicId) {
-        saveMap = null;
-        if (topicConnectionRegistration != null) {
-            topicConnectionRegistration.remove();
+    /**
+     * Shows the page of comments before the oldest one shown so far.
+     */
+    private void showEarlierComments() {
+        String topicId = session.getTopicId();
+        Instant before = earliestShown != null ? earliestShown
+                : commentPersister.getOldestLoadedTime(topicId);
+        if (topicId == null || before == null) {
+            return;
         }
-        if (topicId != null) {
-            topicConnectionRegistration = CollaborationEngine.getInstance()
-                    .openTopicConnection(this, topicId, localUser,
-                            topicConnection -> {
-                                saveMap = topicConnection.getNamedMap("save");
-                                saveMap.subscribe(e -> {
-                                    if (e.getValue(Object.class) == null) {
-                                        return;
-                                    }
-                                    ObjectMapper om = new ObjectMapper();
-                                    try {
-                                        JsonNode jsonNode = om.readTree(
-                                                e.getValue(String.class));
-                                        String savingUser = jsonNode
-                                                .get("userName").asText();
-                                        String savingUserId = jsonNode
-                                                .get("userId").asText();
-                                        if (Objects.equals(savingUserId,
-                                                localUser.getId())) {
-                                            savingUser = "you";
-                                        }
-                                        showSaveNotification(savingUser);
-                                    } catch (JsonProcessingException jsonProcessingException) {
-                                        jsonProcessingException
-                                                .printStackTrace();
-                                    }
-                                });
-                                return null;
-                            });
+        List<CollaborationMessage> page = commentPersister
+                .fetchEarlierMessages(topicId, before);
+        if (page.size() < commentPersister.getPageSize()) {
+            showEarlier.setEnabled(false);
         }
+        if (page.isEmpty()) {
+            return;
+        }
+        earliestShown = page.get(0).getTime();
+        List<MessageListItem> items = new ArrayList<>(page.size());
+        for (CollaborationMessage message : page) {
+            items.add(new MessageListItem(message.getText(),
+                    message.getTime(), message.getUser().getName(),
+                    message.getUser().getImage()));
+        }
+        earlierComments.addAll(0, items);
+        earlierList.setItems(earlierComments);
+        earlierList.setVisible(true);
+    }
+
+    private void clearEarlierComments() {
+        earlierComments = new ArrayList<>();
+        earliestShown = null;
+        earlierList.setItems(earlierComments);
+        earlierList.setVisible(false);
+        showEarlier.setEnabled(true);
     }
 
     private void showSaveNotification(String username) {
@@ -310,24 +339,56 @@ public class EditorView extends Div {
     }
 
     private void sendSaveNotification() {
-        if (saveMap != null) {
-            sendSaveNotification(saveMap, localUser);
+        if (session.getTopicId() != null) {
+            sendSaveNotification(session.getTopicId(), localUser);
         } else {
             showSaveNotification(localUser.getName());
         }
     }
 
-    public static void sendSaveNotification(CollaborationMap map,
-            UserInfo user) {
-        ObjectMapper om = new ObjectMapper();
-        ObjectNode objectNode = om.createObjectNode();
-        objectNode.put("userName", user.getName());
-        objectNode.put("userId", user.getId());
-        objectNode.put("messageId", UUID.randomUUID().toString());
-        map.put("save", objectNode.toString());
-        // Value needs to be cleared right away, or the notification
-        // will be shown when starting to edit the item, and thus
-        // connecting to the topic.
-        map.put("save", null);
+    /**
+     * Tells the users editing an item that it has been saved.
+     *
+     * @param topicId the topic of the item
+     * @param user the user who saved the item
+     * @return future completed when the notification has been relayed to
+     * the other nodes
+     */
+    public static CompletableFuture<Void> sendSaveNotification(
+            String topicId, UserInfo user) {
+        return TopicEventBus.getInstance().publish(topicId,
+                new SaveNotification(user.getId(), user.getName()));
+    }
+
+    /**
+     * The event published when an item is saved.
+     */
+    public static class SaveNotification {
+        private String userId;
+        private String userName;
+
+        public SaveNotification() {
+        }
+
+        public SaveNotification(String userId, String userName) {
+            this.userId = userId;
+            this.userName = userName;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public void setUserId(String userId) {
+            this.userId = userId;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public void setUserName(String userName) {
+            this.userName = userName;
+        }
     }
 }
@@ -1,18 +1,17 @@
 package com.jensjansson.ce.views.persons;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-import com.vaadin.collaborationengine.CollaborationEngine;
-import com.vaadin.collaborationengine.CollaborationMap;
-import com.vaadin.collaborationengine.PresenceManager;
 import com.vaadin.collaborationengine.UserInfo;
 import com.vaadin.flow.component.Component;
+import com.vaadin.flow.component.UI;
 import com.vaadin.flow.component.Text;
-import com.vaadin.flow.component.avatar.Avatar;
-import com.vaadin.flow.component.avatar.AvatarGroup;
-import com.vaadin.flow.component.avatar.AvatarVariant;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.button.ButtonVariant;
 import com.vaadin.flow.component.dialog.Dialog;
@@ -25,28 +24,43 @@ import com.vaadin.flow.component.html.Span;
 import com.vaadin.flow.component.icon.VaadinIcon;
 import com.vaadin.flow.component.notification.Notification;
 import com.vaadin.flow.component.notification.NotificationVariant;
-import com.vaadin.flow.data.renderer.ComponentRenderer;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.data.value.ValueChangeMode;
+import com.vaadin.flow.data.provider.DataGenerator;
+import com.vaadin.flow.data.provider.DataKeyMapper;
 import com.vaadin.flow.data.renderer.LitRenderer;
 import com.vaadin.flow.function.ValueProvider;
 import com.vaadin.flow.router.PageTitle;
 import com.vaadin.flow.router.Route;
-import com.vaadin.flow.spring.data.VaadinSpringDataHelpers;
+import com.vaadin.flow.shared.Registration;
 
+import com.jensjansson.ce.bot.BotManager;
+import com.jensjansson.ce.collaboration.PersonRefreshChannel;
+import com.jensjansson.ce.collaboration.PresenceAggregator;
+import com.jensjansson.ce.collaboration.PresenceAggregator.PresentUser;
+import com.jensjansson.ce.collaboration.TopicPrefetcher;
 import com.jensjansson.ce.data.entity.Person;
+import com.jensjansson.ce.data.service.CommentMessagePersister;
 import com.jensjansson.ce.data.service.PersonService;
 import com.jensjansson.ce.views.main.MainView;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.PageRequest;
 
 @Route(value = "employees", layout = MainView.class)
 @PageTitle("Employees")
 public class EmployeesView extends Div {
 
+    /**
+     * How long to wait after the last keystroke before filtering.
+     */
+    private static final int filterTimeoutMillis = 300;
+
     private final Grid<Person> grid;
 
-    private CollaborationMap refreshGridMap;
+    private final TextField filter = new TextField();
 
     private final EditorView editorView;
 
@@ -54,19 +68,31 @@ public class EmployeesView extends Div {
 
     private final UserInfo localUser;
 
+    /**
+     * Presence subscriptions of the rendered rows. Accessed with the UI
+     * locked.
+     */
+    private final Map<Person, Registration> presenceSubscriptions = new HashMap<>();
+
+    /**
+     * Users present in the topics of the rendered rows. Accessed with the UI
+     * locked.
+     */
+    private final Map<Person, List<PresentUser>> presence = new HashMap<>();
+
     public EmployeesView(@Autowired PersonService personService,
-            MainView mainView) {
+            @Autowired CommentMessagePersister commentPersister,
+            @Autowired MeterRegistry meterRegistry, MainView mainView) {
         setSizeFull();
         this.localUser = mainView.getLocalUser();
 
         editorView = new EditorView(localUser, personService,
+                commentPersister, meterRegistry,
                 new EditorView.EditorActionNotifier() {
                     @Override
                     public void updateGrid(Person person) {
                         grid.getDataProvider().refreshItem(person);
-                        if (refreshGridMap != null) {
-                            refreshGridMap.put(String.valueOf(person.getId()),person);
-                        }
+                        PersonRefreshChannel.getInstance().publish(person);
                         dialog.close();
                     }
 
@@ -91,9 +117,12 @@ public class EmployeesView extends Div {
         dialog.addThemeName("editor-view-dialog");
         dialog.addThemeVariants(DialogVariant.LUMO_NO_PADDING);
 
-        dialog.addDialogCloseActionListener(event -> {
-            editorView.editPerson(null, null);
-            dialog.close();
+        dialog.addDialogCloseActionListener(event -> dialog.close());
+        // However the dialog is closed, the editor leaves the topic.
+        dialog.addOpenedChangeListener(event -> {
+            if (!event.isOpened()) {
+                editorView.editPerson(null, null, false);
+            }
         });
 
         dialog.setCloseOnEsc(true);
@@ -106,34 +135,44 @@ public class EmployeesView extends Div {
         grid.addColumn(createTeamInfoRenderer()).setFlexGrow(1);
         grid.addColumn(createContactInfoRenderer())
             .setFlexGrow(2);
-        grid.addColumn(new ComponentRenderer<>(this::createPresenceComponent))
+        grid.addColumn(createPresenceRenderer())
             .setFlexGrow(1);
+        grid.addDataGenerator(createPresenceSubscriber());
         grid.addColumn(createEditButtonRenderer())
             .setWidth("5em").setFlexGrow(0)
             .setTextAlign(ColumnTextAlign.END);
 
         grid.setItems(
-                query -> personService
-                        .list(PageRequest
-                                .of(query.getPage(), query.getPageSize(),
-                                        VaadinSpringDataHelpers
-                                                .toSpringDataSort(query)))
-                        .stream());
+                query -> personService.findByQuery(filter.getValue(),
+                        query.getOffset(), query.getLimit()).stream(),
+                query -> personService.countByQuery(filter.getValue()));
 
         grid.addThemeVariants(GridVariant.LUMO_NO_BORDER);
         grid.setHeightFull();
         grid.setSelectionMode(Grid.SelectionMode.NONE);
 
-        add(grid);
-
-
-        CollaborationEngine.getInstance().openTopicConnection(this,
-                "refreshGrid", mainView.getLocalUser(), topicConnection -> {
-                    refreshGridMap = topicConnection.getNamedMap("refreshGrid");
-                refreshGridMap.subscribe(e -> grid.getDataProvider()
-                    .refreshItem(e.getValue(Person.class)));
-                return () -> refreshGridMap = null;
-                });
+        // The grid is filtered once the user stops typing.
+        filter.setPlaceholder("Search");
+        filter.setPrefixComponent(VaadinIcon.SEARCH.create());
+        filter.setClearButtonVisible(true);
+        filter.setValueChangeMode(ValueChangeMode.LAZY);
+        filter.setValueChangeTimeout(filterTimeoutMillis);
+        filter.addValueChangeListener(
+                e -> grid.getDataProvider().refreshAll());
+        filter.addClassNames("px-m");
+
+        addClassNames("flex", "flex-col");
+        add(filter, grid);
+
+        // Refresh the rows saved in other UIs and by the bots, one batch at
+        // a time.
+        PersonRefreshChannel.getInstance().subscribe(this, localUser,
+                persons -> persons
+                        .forEach(grid.getDataProvider()::refreshItem));
+
+        // The rows subscribe again when they are rendered after attaching.
+        addDetachListener(e -> new ArrayList<>(presenceSubscriptions.keySet())
+                .forEach(this::unsubscribeFromPresence));
 
     }
 
@@ -175,9 +214,110 @@ public class EmployeesView extends Div {
             .withProperty("team", getEmptyIfNull(Person::getTeam));
     }
 
-   private PresenceComponent createPresenceComponent(Person person) {
-        String topicId = getTopicId(person);
-        return new PresenceComponent(localUser, topicId);
+    /**
+     * Renders the users present in the topic of each row on the client. The
+     * users come from the {@link PresenceAggregator}, see
+     * {@link #createPresenceSubscriber()}.
+     */
+    private LitRenderer<Person> createPresenceRenderer() {
+        String template = "<vaadin-avatar-group .items=${item.presence}>"
+            + "</vaadin-avatar-group>";
+        return LitRenderer.<Person>of(template)
+            .withProperty("presence", this::getPresenceItems);
+    }
+
+    /**
+     * Subscribes the rows to the users present in their topics when they
+     * are sent to the client, and ends the subscriptions when the client no
+     * longer has them.
+     */
+    private DataGenerator<Person> createPresenceSubscriber() {
+        return new DataGenerator<>() {
+            @Override
+            public void generateData(Person person, JsonObject jsonObject) {
+                if (!presenceSubscriptions.containsKey(person)) {
+                    grid.getUI().ifPresent(
+                            ui -> subscribeToPresence(ui, person));
+                }
+            }
+
+            @Override
+            public void destroyData(Person person) {
+                unsubscribeFromPresence(person);
+            }
+
+            @Override
+            public void destroyAllData() {
+                new ArrayList<>(presenceSubscriptions.keySet())
+                        .forEach(EmployeesView.this::unsubscribeFromPresence);
+            }
+        };
+    }
+
+    private JsonArray getPresenceItems(Person person) {
+        return createPresenceItems(
+            presence.getOrDefault(person, Collections.emptyList()), localUser);
+    }
+
+    /**
+     * @param users the present users
+     * @param localUser the user of the UI, shown first if present
+     * @return the items of a {@code vaadin-avatar-group}
+     */
+    static JsonArray createPresenceItems(List<PresentUser> users,
+            UserInfo localUser) {
+        JsonArray items = Json.createArray();
+        users.stream()
+            // Set the local user as the first item.
+            .sorted(Comparator.comparing(present -> !Objects
+                .equals(localUser.getId(), present.getUser().getId())))
+            .forEach(present -> {
+                JsonObject item = Json.createObject();
+                item.put("name", String.format("%s is editing this row",
+                    present.getUser().getName()));
+                if (present.getUser().getImage() != null) {
+                    item.put("img", present.getUser().getImage());
+                }
+                item.put("colorIndex", present.getColorIndex());
+                items.set(items.length(), item);
+            });
+        return items;
+    }
+
+    private void subscribeToPresence(UI ui, Person person) {
+        presenceSubscriptions.put(person, PresenceAggregator.getInstance()
+            .subscribe(ui, getTopicId(person),
+                users -> presenceChanged(person, users)));
+    }
+
+    /**
+     * Refreshes the row of the person if the users present have changed.
+     */
+    private void presenceChanged(Person person, List<PresentUser> users) {
+        if (!presenceSubscriptions.containsKey(person)) {
+            return;
+        }
+        List<PresentUser> previous = presence.put(person, users);
+        if (users.equals(previous == null ? Collections.emptyList() : previous)) {
+            return;
+        }
+        DataKeyMapper<Person> keyMapper = grid.getDataCommunicator().getKeyMapper();
+        if (keyMapper.has(person)) {
+            // Refresh the rendered instance, the one given to the
+            // subscription may be older.
+            grid.getDataProvider()
+                .refreshItem(keyMapper.get(keyMapper.key(person)));
+        } else {
+            unsubscribeFromPresence(person);
+        }
+    }
+
+    private void unsubscribeFromPresence(Person person) {
+        Registration registration = presenceSubscriptions.remove(person);
+        if (registration != null) {
+            registration.remove();
+        }
+        presence.remove(person);
     }
 
     private LitRenderer<Person> createContactInfoRenderer() {
@@ -191,12 +331,24 @@ public class EmployeesView extends Div {
     }
 
     private LitRenderer<Person> createEditButtonRenderer() {
+        // The topic is warmed up when the button is about to be clicked.
         String template =
-            "<vaadin-button theme=\"icon tertiary\" @click=${handleClick} >"
+            "<vaadin-button theme=\"icon tertiary\" @click=${handleClick}"
+                + " @mouseenter=${handlePrefetch} @focus=${handlePrefetch}>"
                 + "<vaadin-icon icon=\"vaadin:edit\" slot=\"prefix\"></vaadin-icon>"
                 + "</vaadin-button>";
         return LitRenderer.<Person>of(template)
-            .withFunction("handleClick", this::editPerson);
+            .withFunction("handleClick", this::editPerson)
+            .withFunction("handlePrefetch", this::prefetchPerson);
+    }
+
+    private void prefetchPerson(Person person) {
+        String topicId = getTopicId(person);
+        if (topicId != null) {
+            TopicPrefetcher.getInstance().prefetch(topicId, person.getId());
+            // Make sure a bot is there to join the user.
+            BotManager.activateTopic(person.getId());
+        }
     }
 
     public static String getTopicId(Person person) {
@@ -208,45 +360,13 @@ public class EmployeesView extends Div {
     }
 
     private void editPerson(Person person) {
-        editorView.editPerson(person, getTopicId(person));
+        String topicId = getTopicId(person);
+        // Whether hovering the button had warmed the topic up by the click.
+        boolean prefetched = topicId != null
+                && TopicPrefetcher.getInstance().isWarm(topicId);
+        editorView.editPerson(person, topicId, prefetched);
         if (person != null) {
             dialog.open();
         }
     }
 }
-
-/**
- * Component that shows avatars of the users marked as present in the topic
- * without marking the current user as present.
- * Used in the grid to display bots and users editing a given entity.
- */
-class PresenceComponent extends AvatarGroup {
-
-    private static final Logger logger = LoggerFactory
-        .getLogger(PresenceComponent.class);
-
-    public PresenceComponent(UserInfo localUser, String topicId) {
-        Objects.requireNonNull(localUser);
-        Objects.requireNonNull(topicId);
-        PresenceManager presenceManager = new PresenceManager(this,
-            localUser, topicId);
-        presenceManager.markAsPresent(false);
-
-
-
-        presenceManager.setPresenceHandler(e -> {
-            String description = String.format("%s is editing this row", e.getUser().getName());
-            AvatarGroupItem item = new AvatarGroupItem(description, e.getUser().getImage());
-            CollaborationEngine.getInstance().getUserColorIndex(e.getUser());
-            if (Objects.equals(localUser.getId(), e.getUser().getId())) {
-                // Set the local user as the first item.
-                setItems(Stream.concat(Stream.of(item), getItems().stream()).collect(Collectors.toList()));
-            } else {
-                add(item);
-            }
-            return () -> remove(item);
-        });
-        addAttachListener( e -> logger.debug("Attached to " + topicId));
-        addDetachListener( e -> logger.debug("Detached from" + topicId));
-    }
-}